@@ -0,0 +1,261 @@
+package org.pixie;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Keeps a recovery journal of the canvas: a project file in the recovery
+ * directory, to which a background thread appends the history every
+ * INTERVAL in which the image changed. Tiles are copied on write, so the
+ * tiles an action touched are the only new ones in the snapshot, and an
+ * autosave writes just those, with the new actions. Nothing but taking the
+ * snapshot happens on the event thread.
+ * <p>
+ * Each running Pixie locks its journal. On start, the newest journal no
+ * other Pixie holds is recovered into the canvas and kept appending to; a
+ * clean exit deletes it.
+ */
+public class Autosave implements ActionListener {
+	/** the directory of the journals, by default ~/.pixie/recovery */
+	static final String DIR_PROPERTY = "pixie.recovery";
+	/** the time between autosaves, in ms */
+	static final int INTERVAL = Integer.getInteger("pixie.autosaveInterval",
+			10000);
+	/** the journal is rewritten once it grows this much past its last rewrite */
+	static final int COMPACT_RATIO = 4;
+
+	private final Pixie pixie;
+	private final File dir;
+	private final Timer timer = new Timer(INTERVAL, this);
+	/** not Parallel.POOL, whose threads must not wait on I/O */
+	private final ExecutorService writer = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Pixie autosave");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	private File file;
+	private RandomAccessFile lockFile;
+	private FileLock lock;
+
+	// used by the writer thread only
+	private Project project;
+	/** the length of the journal after it was last written from scratch */
+	private long compacted;
+
+	// used by the event thread only
+	/** the version of the image last journaled */
+	private long saved = -1;
+	/** whether anything went into the journal, which then follows undos */
+	private boolean journaled;
+	private boolean writing;
+
+	public Autosave(Pixie pixie) {
+		this.pixie = pixie;
+		String d = System.getProperty(DIR_PROPERTY);
+		dir = d != null ? new File(d) : new File(new File(
+				System.getProperty("user.home"), ".pixie"), "recovery");
+	}
+
+	/**
+	 * Recovers the newest journal left by a Pixie that did not exit
+	 * cleanly, if any, and starts journaling.
+	 */
+	public void start() {
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Cannot create " + dir);
+			recover();
+			if (file == null)
+				create();
+		} catch (IOException e) {
+			// editing goes on without a journal
+			e.printStackTrace();
+			return;
+		}
+		timer.start();
+	}
+
+	private void recover() throws IOException {
+		File[] journals = dir.listFiles();
+		if (journals == null)
+			return;
+		File newest = null;
+		for (File f : journals)
+			if (Project.isProject(f)
+					&& (newest == null || f.lastModified() > newest
+							.lastModified()) && isFree(f))
+				newest = f;
+		if (newest == null || !lock(newest))
+			return;
+		file = newest;
+		Project p = new Project(file);
+		try {
+			pixie.restore(p.load());
+		} catch (IOException e) {
+			// a journal cut short before its first save holds nothing
+			e.printStackTrace();
+			return;
+		}
+		project = p;
+		compacted = file.length();
+		saved = pixie.canvas.getTiledImage().getVersion();
+		journaled = true;
+		JOptionPane.showMessageDialog(null,
+				"Recovered the image left unsaved on "
+						+ new Date(file.lastModified()) + ".");
+	}
+
+	/** @return whether no running Pixie holds the journal f */
+	private boolean isFree(File f) {
+		if (!lock(f))
+			return false;
+		unlock();
+		return true;
+	}
+
+	private boolean lock(File f) {
+		try {
+			lockFile = new RandomAccessFile(lockFileOf(f), "rw");
+			lock = lockFile.getChannel().tryLock();
+			if (lock != null)
+				return true;
+			lockFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		lockFile = null;
+		return false;
+	}
+
+	private void unlock() {
+		try {
+			if (lock != null)
+				lock.release();
+			if (lockFile != null)
+				lockFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		lock = null;
+		lockFile = null;
+	}
+
+	private static File lockFileOf(File journal) {
+		return new File(journal.getPath() + ".lock");
+	}
+
+	private void create() throws IOException {
+		long id = System.currentTimeMillis();
+		for (int i = 0; i < 100; i++, id++) {
+			File f = new File(dir, id + Project.SUFFIX);
+			if (!f.exists() && !lockFileOf(f).exists() && lock(f)) {
+				file = f;
+				return;
+			}
+		}
+		throw new IOException("Cannot create a journal in " + dir);
+	}
+
+	/**
+	 * Journals the history if the image changed since the last time, once
+	 * there are changes to lose.
+	 */
+	public void actionPerformed(ActionEvent e) {
+		if (!writing && !pixie.isLoading()
+				&& (journaled || pixie.hasChanged()))
+			journal(null);
+	}
+
+	/**
+	 * Hands a snapshot of the history to the writer, if the image changed.
+	 *
+	 * @param then
+	 *            run by the writer once done, or null
+	 */
+	protected void journal(final Runnable then) {
+		final long version = pixie.canvas.getTiledImage().getVersion();
+		final Canvas.History h = version == saved ? null : pixie.canvas
+				.getHistory();
+		// held open until written, in case the canvas moves on to another image
+		final TileStore store = h == null ? null : h.image.getStore();
+		if (h != null)
+			journaled = true;
+		if (store != null)
+			store.retain();
+		writing = true;
+		writer.execute(new Runnable() {
+			public void run() {
+				boolean ok = false;
+				try {
+					if (h != null)
+						write(h);
+					ok = true;
+				} catch (Exception e) {
+					// tried again with the next change
+					e.printStackTrace();
+				} finally {
+					if (store != null)
+						store.dispose();
+				}
+				final boolean written = ok;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						writing = false;
+						if (written)
+							saved = version;
+					}
+				});
+				if (then != null)
+					then.run();
+			}
+		});
+	}
+
+	/** Appends h to the journal, or rewrites it once it grew too large. */
+	private void write(Canvas.History h) throws IOException {
+		if (project == null || file.length() > COMPACT_RATIO * compacted) {
+			project = new Project(file);
+			project.save(h, null);
+			compacted = file.length();
+		} else
+			project.save(h, null);
+	}
+
+	/**
+	 * Exits Pixie. Unless the journal is kept, it is deleted first;
+	 * otherwise the latest changes go into it, and Pixie exits once the
+	 * writer is done, without the event thread waiting on it.
+	 */
+	public void exit(boolean keep) {
+		timer.stop();
+		if (!keep || file == null) {
+			writer.shutdownNow();
+			if (file != null) {
+				file.delete();
+				unlock();
+				lockFileOf(file).delete();
+			}
+			System.exit(0);
+		}
+		journal(new Runnable() {
+			public void run() {
+				System.exit(0);
+			}
+		});
+	}
+}
@@ -0,0 +1,246 @@
+package org.pixie;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import org.pixie.EffectsMenu.Effect;
+
+/**
+ * Applies a chain of effects to every image of a directory, without a
+ * window:
+ *
+ * <pre>
+ * java -Djava.awt.headless=true -cp Pixie org.pixie.Batch blur:3,value:1.2,invert in [out]
+ * </pre>
+ *
+ * The pixie.compression property sets the deflate level of the PNGs, from
+ * 0 to 9; the default is the fastest.
+ *
+ * Each worker decodes, filters and encodes one image at a time, so with
+ * one worker per core some images are being read or written while others
+ * are filtered, and no more images than workers are held in memory. The
+ * effects themselves also split their work over Parallel.POOL, and run as
+ * an EffectsMenu.Chain, which fuses runs of point or transform effects,
+ * and the PngWriter compresses strips of rows in parallel.
+ */
+public class Batch {
+	/** the effects a chain may name, with what their argument means */
+	static final String USAGE = "usage: Batch <chain> <input dir> [output dir]\n"
+			+ "  chain: effects separated by commas, each name[:arg], of\n"
+			+ "    blur:size (1-9), value:factor, gamma:value, fade:amount (0-1),\n"
+			+ "    invert, smooth, sharpen, emboss, mean_removal,\n"
+			+ "    rotate_right, rotate_left, mirror, mirror_ox\n"
+			+ "  output dir defaults to <input dir>/processed; images are saved as PNG,\n"
+			+ "  deflated at level -Dpixie.compression (0-9, default 1)";
+	/** the deflate level of the PNGs written, by default the fastest */
+	static final String LEVEL_PROPERTY = "pixie.compression";
+
+	private final String chain;
+	/** how many passes over each image the fused chain makes */
+	private final int passes;
+	private final File out;
+	private final int level;
+	private final AtomicInteger done = new AtomicInteger(), failed = new AtomicInteger();
+	private final AtomicLong pixels = new AtomicLong();
+	/** time the workers spent in each stage, in ns */
+	private final AtomicLong decodeTime = new AtomicLong(),
+			filterTime = new AtomicLong(), encodeTime = new AtomicLong();
+
+	/**
+	 * @param level
+	 *            the deflate level of the PNGs written, 0 to 9
+	 */
+	public Batch(String chain, File out, int level) {
+		// fail on a bad chain before any image is read
+		passes = new EffectsMenu.Chain(parse(chain)).getPasses();
+		if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Compression must be 0-9");
+		this.chain = chain;
+		this.out = out;
+		this.level = level;
+	}
+
+	/**
+	 * @return new effects for a chain such as "blur:3,value:1.2,invert";
+	 *         effects keep their last result, so workers must not share them
+	 */
+	public static List<Effect> parse(String chain) {
+		List<Effect> effects = new ArrayList<Effect>();
+		for (String item : chain.split(",")) {
+			item = item.trim();
+			if (item.length() == 0)
+				continue;
+			int colon = item.indexOf(':');
+			String name = (colon < 0 ? item : item.substring(0, colon))
+					.toLowerCase(Locale.ROOT);
+			String arg = colon < 0 ? null : item.substring(colon + 1);
+			effects.add(create(name, arg));
+		}
+		if (effects.isEmpty())
+			throw new IllegalArgumentException("No effect in \"" + chain
+					+ "\"");
+		return effects;
+	}
+
+	private static Effect create(String name, String arg) {
+		try {
+			if (name.equals("blur")) {
+				int size = arg == null ? 3 : Integer.parseInt(arg);
+				if (size < 1 || size > 9)
+					throw new IllegalArgumentException("Blur size must be 1-9");
+				return new EffectsMenu.Blur(size);
+			}
+			if (name.equals("value"))
+				return new EffectsMenu.Value(arg == null ? 1 : Float
+						.parseFloat(arg));
+			if (name.equals("gamma"))
+				return new EffectsMenu.GamaCorrection(arg == null ? 128
+						: Double.parseDouble(arg));
+			if (name.equals("fade"))
+				return new EffectsMenu.Fade(Color.BLACK, arg == null ? 0.5f
+						: Float.parseFloat(arg));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad argument for " + name
+					+ ": " + arg);
+		}
+		if (arg != null)
+			throw new IllegalArgumentException(name + " takes no argument");
+		if (name.equals("invert"))
+			return new EffectsMenu.Invert();
+		if (name.equals("smooth"))
+			return new EffectsMenu.Smooth();
+		if (name.equals("sharpen"))
+			return new EffectsMenu.Sharpen();
+		if (name.equals("emboss"))
+			return new EffectsMenu.Emboss();
+		if (name.equals("mean_removal"))
+			return new EffectsMenu.Mean_Removal();
+		if (name.equals("rotate_right"))
+			return new EffectsMenu.Rotate90Right();
+		if (name.equals("rotate_left"))
+			return new EffectsMenu.Rotate90Left();
+		if (name.equals("mirror"))
+			return new EffectsMenu.Mirror();
+		if (name.equals("mirror_ox"))
+			return new EffectsMenu.MirrorOX();
+		throw new IllegalArgumentException("Unknown effect " + name);
+	}
+
+	/** Decodes, filters and encodes one image. */
+	public void process(File f) throws IOException {
+		long t0 = System.nanoTime();
+		TiledImage img = TiledImage.read(f);
+		TileStore store = img.getStore();
+		try {
+			long t1 = System.nanoTime();
+			img = new EffectsMenu.Chain(parse(chain)).apply(img, null);
+			long t2 = System.nanoTime();
+			String name = f.getName();
+			if (name.contains("."))
+				name = name.substring(0, name.lastIndexOf('.'));
+			File dst = new File(out, name + ".png");
+			new PngWriter(level).write(img, dst, null);
+			long t3 = System.nanoTime();
+
+			decodeTime.addAndGet(t1 - t0);
+			filterTime.addAndGet(t2 - t1);
+			encodeTime.addAndGet(t3 - t2);
+			pixels.addAndGet((long) img.getWidth() * img.getHeight());
+		} finally {
+			if (store != null)
+				store.dispose();
+		}
+	}
+
+	/** Processes the images among files on the given number of workers. */
+	public void run(File[] files, int workers) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		for (final File f : files)
+			pool.execute(new Runnable() {
+				public void run() {
+					try {
+						process(f);
+						done.incrementAndGet();
+					} catch (Exception e) {
+						failed.incrementAndGet();
+						System.err.println(f + ": " + e);
+					}
+				}
+			});
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	public void report(long elapsed, int workers) {
+		double s = elapsed / 1e9;
+		System.out.printf(Locale.ROOT, "%d effects fused into %d passes%n",
+				parse(chain).size(), passes);
+		System.out.printf(Locale.ROOT,
+				"%d images (%d failed) on %d workers in %.2f s%n", done.get(),
+				failed.get(), workers, s);
+		System.out.printf(Locale.ROOT, "%.2f images/s, %.2f Mpixels/s%n",
+				done.get() / s, pixels.get() / 1e6 / s);
+		System.out.printf(Locale.ROOT,
+				"worker time: decode %.2f s, filter %.2f s, encode %.2f s%n",
+				decodeTime.get() / 1e9, filterTime.get() / 1e9,
+				encodeTime.get() / 1e9);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		File in = new File(args[1]);
+		File out = args.length > 2 ? new File(args[2]) : new File(in,
+				"processed");
+		Batch batch;
+		try {
+			batch = new Batch(args[0], out, Integer.getInteger(
+					LEVEL_PROPERTY, Deflater.BEST_SPEED));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+		File[] files = in.listFiles();
+		if (files == null) {
+			System.err.println("Cannot list " + in);
+			System.exit(1);
+		}
+		List<String> suffixes = new ArrayList<String>();
+		for (String suffix : ImageIO.getReaderFileSuffixes())
+			suffixes.add(suffix.toLowerCase(Locale.ROOT));
+		List<File> images = new ArrayList<File>();
+		for (File f : files) {
+			String name = f.getName().toLowerCase(Locale.ROOT);
+			if (f.isFile()
+					&& suffixes.contains(name.substring(name.lastIndexOf('.') + 1)))
+				images.add(f);
+		}
+		if (!out.isDirectory() && !out.mkdirs()) {
+			System.err.println("Cannot create " + out);
+			System.exit(1);
+		}
+
+		int workers = Runtime.getRuntime().availableProcessors();
+		long t = System.nanoTime();
+		batch.run(images.toArray(new File[images.size()]), workers);
+		batch.report(System.nanoTime() - t, workers);
+		if (batch.failed.get() > 0)
+			System.exit(1);
+	}
+}
@@ -1,101 +1,452 @@
 package org.pixie;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Paint;
 import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.TexturePaint;
 import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 
 import javax.swing.JLabel;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+import org.pixie.ImageAction.BoundedImageAction;
+import org.pixie.ImageAction.FilterImageAction;
+import org.pixie.ImageAction.MaskImageAction;
+import org.pixie.ImageAction.PointImageAction;
 
 public class Canvas extends JLabel {
 	private static final long serialVersionUID = 1L;
-	private BufferedImage raster, cache, grid;
+	/** a keyframe is taken after this many replayed actions... */
+	static final int KEYFRAME_INTERVAL = 32;
+	/** ...or once replaying since the last keyframe took this long */
+	static final long KEYFRAME_BUDGET = 50 * 1000 * 1000L;
+	static final int MAX_KEYFRAMES = 8;
+	/** set -Dpixie.paintStats=true to log what each repaint allocates */
+	static final boolean PAINT_STATS = Boolean.getBoolean("pixie.paintStats");
+
+	/** the opened image, and the result of applying acts to it */
+	private TiledImage base, image;
+	/** one grid tile per zoom level, repeated over the visible area */
+	private final HashMap<Integer, TexturePaint> gridPatterns = new HashMap<Integer, TexturePaint>();
+	/** reused across repaints to draw the active action into */
+	private BufferedImage overlay;
+	private int paints, overlayAllocations;
+	/** drawn scaled over previewRect of the image, while it is not null */
+	private BufferedImage preview;
+	private Rectangle previewRect;
+	/** drawn stretched under the image, showing through missing tiles */
+	private BufferedImage placeholder;
 	public ImageAction active;
 
 	public ArrayDeque<ImageAction> acts;
+	/**
+	 * the version of the image right after each action, so that replaying
+	 * the same history rebuilds the same versions
+	 */
+	private final IdentityHashMap<ImageAction, Long> versions = new IdentityHashMap<ImageAction, Long>();
+	private final ArrayList<Keyframe> keyframes = new ArrayList<Keyframe>();
+	/** actions and time spent on them since the last keyframe */
+	private int replayed;
+	private long replayCost;
 	private int zoom = 1;
 	public boolean isGridDrawn = true;
 	public final boolean invertGrid = true;
 
 	public Canvas(BufferedImage image) {
 		setOpaque(true);
-		raster = image;
+		base = TiledImage.fromImage(image);
+		this.image = base.snapshot();
 		acts = new ArrayDeque<ImageAction>();
-		cache = new BufferedImage(raster.getWidth(), raster.getHeight(),
-				BufferedImage.TYPE_INT_ARGB);
+	}
+
+	/**
+	 * A snapshot of the image taken after the first <code>index</code>
+	 * actions, so that a redraw only replays what came after it.
+	 */
+	protected static class Keyframe {
+		final int index;
+		final ImageAction last;
+		final TiledImage image;
+
+		Keyframe(int index, ImageAction last, TiledImage image) {
+			this.index = index;
+			this.last = last;
+			this.image = image;
+		}
+	}
+
+	/**
+	 * The opened image, the actions applied to it since and the keyframes
+	 * along the way, with the image they result in: all a project file
+	 * needs to reopen with its undo history.
+	 */
+	public static class History {
+		public final TiledImage base, image;
+		public final List<ImageAction> acts;
+		public final List<Keyframe> keyframes;
+
+		public History(TiledImage base, TiledImage image,
+				List<ImageAction> acts, List<Keyframe> keyframes) {
+			this.base = base;
+			this.image = image;
+			this.acts = acts;
+			this.keyframes = keyframes;
+		}
+	}
+
+	/** @return a snapshot of the history, which later edits leave alone */
+	public History getHistory() {
+		validKeyframe();
+		return new History(base, image.snapshot(), new ArrayList<ImageAction>(
+				acts), new ArrayList<Keyframe>(keyframes));
+	}
+
+	/**
+	 * Replaces the image and its history at once, without replaying any of
+	 * it; the images of h must not be written to.
+	 */
+	public void setHistory(History h) {
+		TiledImage old = base;
+		base = h.base;
+		replaced(old);
+		overlay = null;
+		acts.clear();
+		versions.clear();
+		keyframes.clear();
+		// versions only mean something within a session, so hand out new ones
+		image = h.image.snapshot();
+		image.setVersion(base.getVersion());
+		for (ImageAction act : h.acts) {
+			acts.add(act);
+			long version = TiledImage.nextVersion();
+			versions.put(act, version);
+			image.setVersion(version);
+		}
+		for (Keyframe k : h.keyframes) {
+			k.image.setVersion(versions.get(k.last));
+			keyframes.add(k);
+		}
+		replayed = 0;
+		replayCost = 0;
+		repaint();
+		fireImageChanged();
 	}
 
 	public void setImage(BufferedImage image) {
-		raster = image;
+		setImage(TiledImage.fromImage(image));
+	}
+
+	public void setImage(TiledImage image) {
+		TiledImage old = base;
+		base = image;
+		replaced(old);
+		overlay = null;
 		acts.clear();
+		versions.clear();
+		keyframes.clear();
 		redrawCache();
 	}
 
-	public BufferedImage getRenderImage() {
-		BufferedImage img = new BufferedImage(raster.getWidth(),
-				raster.getHeight(), BufferedImage.TYPE_INT_ARGB);
-		Graphics2D g = img.createGraphics();
+	/**
+	 * Appends an action to the history, compositing it onto the current
+	 * image; bounded actions only touch and repaint their own tiles.
+	 */
+	public void commit(ImageAction act) {
+		acts.add(act);
+		versions.put(act, TiledImage.nextVersion());
+		paintAction(act, acts.size());
+		if (act instanceof BoundedImageAction)
+			repaint(((BoundedImageAction) act).getBounds());
+		else
+			repaint();
+		fireImageChanged();
+	}
+
+	public boolean undo() {
+		if (acts.isEmpty())
+			return false;
+		versions.remove(acts.removeLast());
+		redrawCache();
+		return true;
+	}
 
-		g.drawImage(raster, 0, 0, null);
-		g.drawImage(cache, 0, 0, null);
+	public BufferedImage getRenderImage() {
+		return image.toBufferedImage();
+	}
 
-		g.dispose();
-		return img;
+	/** @return the current image; snapshot it before keeping it around */
+	public TiledImage getTiledImage() {
+		return image;
 	}
 
 	public Dimension getImageSize() {
-		return new Dimension(raster.getWidth(), raster.getHeight());
+		return new Dimension(image.getWidth(), image.getHeight());
 	}
 
 	@Override
 	public Dimension getPreferredSize() {
-		return new Dimension(cache.getWidth() * zoom + 1, cache.getHeight()
+		return new Dimension(image.getWidth() * zoom + 1, image.getHeight()
 				* zoom + 1);
 	}
 
 	public void redrawCache() {
-		cache = new BufferedImage(raster.getWidth(), raster.getHeight(),
-				BufferedImage.TYPE_INT_ARGB);
-		Graphics g = cache.getGraphics();
-		for (ImageAction act : acts)
-			act.paint(g);
+		Keyframe start = validKeyframe();
+		int index = 0;
+		if (start != null) {
+			image = start.image.snapshot();
+			index = start.index;
+		} else
+			image = base.snapshot();
+
+		Iterator<ImageAction> it = acts.iterator();
+		for (int i = 0; i < index; i++)
+			it.next();
+		replayed = 0;
+		replayCost = 0;
+		// runs of point and transform effects are replayed as one chain
+		List<ImageAction> run = new ArrayList<ImageAction>();
+		while (it.hasNext()) {
+			ImageAction act = it.next();
+			index++;
+			if (act instanceof EffectsMenu.PointEffect
+					|| act instanceof EffectsMenu.TransformEffect) {
+				run.add(act);
+				continue;
+			}
+			paintRun(run, index - 1);
+			paintAction(act, index);
+		}
+		paintRun(run, index);
 		repaint();
+		fireImageChanged();
+	}
+
+	/**
+	 * Tells the listeners of the "image" property that the image old was
+	 * replaced, then disposes its store unless the new image shares it.
+	 */
+	private void replaced(TiledImage old) {
+		firePropertyChange("image", old, base);
+		TileStore store = old.getStore();
+		if (store != null && store != base.getStore())
+			store.dispose();
+	}
+
+	/**
+	 * Registers a listener told after each change to the image. Listeners
+	 * of the "image" property are also told when another image replaces
+	 * it, before the tiles of the old one go away.
+	 */
+	public void addChangeListener(ChangeListener l) {
+		listenerList.add(ChangeListener.class, l);
+	}
+
+	public void removeChangeListener(ChangeListener l) {
+		listenerList.remove(ChangeListener.class, l);
+	}
+
+	protected void fireImageChanged() {
+		ChangeEvent e = new ChangeEvent(this);
+		for (ChangeListener l : listenerList.getListeners(ChangeListener.class))
+			l.stateChanged(e);
+	}
+
+	/**
+	 * Paints the index-th action of the history onto the image, taking a
+	 * keyframe when enough work has piled up since the last one.
+	 */
+	protected void paintAction(ImageAction act, int index) {
+		long t = System.nanoTime();
+		TiledImage kept;
+		if (act instanceof MaskImageAction
+				&& ((MaskImageAction) act).getColor().getAlpha() == 255) {
+			MaskImageAction m = (MaskImageAction) act;
+			image.fill(m.getMask(), m.getColor().getRGB());
+		} else if (act instanceof BoundedImageAction)
+			image.paint(act, ((BoundedImageAction) act).getBounds());
+		else if ((kept = kept(act, image.getVersion())) != null)
+			image = kept;
+		else if (act instanceof PointImageAction)
+			((PointImageAction) act).getPointOp().apply(image);
+		else if (act instanceof FilterImageAction)
+			image = ((FilterImageAction) act).filter(image);
+		else
+			image.paint(act, new Rectangle(0, 0, image.getWidth(), image
+					.getHeight()));
+		painted(act, index, 1, t);
+	}
+
+	/**
+	 * Paints a run of point and transform effects ending with the index-th
+	 * action, and empties it. The run starts over from the last result an
+	 * effect of it kept, and what follows is applied as one
+	 * EffectsMenu.Chain, so adjacent point effects make a single pass.
+	 */
+	protected void paintRun(List<ImageAction> run, int index) {
+		if (run.size() < 2) {
+			if (!run.isEmpty())
+				paintAction(run.get(0), index);
+			run.clear();
+			return;
+		}
+		long t = System.nanoTime();
+		int from = 0;
+		for (int i = run.size() - 1; i >= 0 && from == 0; i--) {
+			Long input = i == 0 ? Long.valueOf(image.getVersion()) : versions
+					.get(run.get(i - 1));
+			TiledImage kept = input == null ? null : kept(run.get(i), input);
+			if (kept != null) {
+				image = kept;
+				from = i + 1;
+			}
+		}
+		if (from < run.size()) {
+			List<EffectsMenu.Effect> rest = new ArrayList<EffectsMenu.Effect>();
+			for (ImageAction act : run.subList(from, run.size()))
+				rest.add((EffectsMenu.Effect) act);
+			image = new EffectsMenu.Chain(rest).apply(image, null);
+		}
+		painted(run.get(run.size() - 1), index, run.size(), t);
+		run.clear();
 	}
 
-	public void redrawGrid() {
-		int cw = cache.getWidth() * zoom;
-		int ch = cache.getHeight() * zoom;
+	/** @return the result act kept for the image version given, or null */
+	private static TiledImage kept(ImageAction act, long inputVersion) {
+		return act instanceof EffectsMenu.Effect ? ((EffectsMenu.Effect) act)
+				.kept(inputVersion) : null;
+	}
 
-		grid = new BufferedImage(cw, ch, BufferedImage.TYPE_INT_ARGB);
-		Graphics g = grid.getGraphics();
-		paintGrid(g);
+	/**
+	 * Stamps the image with the version of last, the index-th action, after
+	 * count actions were painted since t, and takes a keyframe when enough
+	 * work has piled up since the last one.
+	 */
+	private void painted(ImageAction last, int index, int count, long t) {
+		Long version = versions.get(last);
+		if (version != null)
+			image.setVersion(version);
+		replayCost += System.nanoTime() - t;
+		replayed += count;
+		if (replayed >= KEYFRAME_INTERVAL || replayCost >= KEYFRAME_BUDGET) {
+			addKeyframe(index, last);
+			replayed = 0;
+			replayCost = 0;
+		}
+	}
+
+	/**
+	 * Drops the keyframes that no longer match the history and returns the
+	 * latest one still usable, or null.
+	 */
+	protected Keyframe validKeyframe() {
+		int i = 0, index = 0;
+		Iterator<ImageAction> it = acts.iterator();
+		while (i < keyframes.size()) {
+			Keyframe k = keyframes.get(i);
+			ImageAction act = null;
+			while (index < k.index && it.hasNext()) {
+				act = it.next();
+				index++;
+			}
+			if (index < k.index || act != k.last)
+				break;
+			i++;
+		}
+		while (keyframes.size() > i)
+			keyframes.remove(keyframes.size() - 1);
+		return i == 0 ? null : keyframes.get(i - 1);
+	}
+
+	protected void addKeyframe(int index, ImageAction last) {
+		keyframes.add(new Keyframe(index, last, image.snapshot()));
+		if (keyframes.size() > MAX_KEYFRAMES)
+			keyframes.remove(0);
+	}
+
+	protected TexturePaint getGridPattern() {
+		TexturePaint tp = gridPatterns.get(zoom);
+		if (tp == null) {
+			BufferedImage tile = new BufferedImage(zoom, zoom,
+					BufferedImage.TYPE_INT_ARGB);
+			for (int i = 0; i < zoom; i++) {
+				int rgb = Color.GRAY.getRGB();
+				// alternate dark and light so the grid shows on any color
+				if (invertGrid)
+					rgb = (i & 1) == 0 ? Color.BLACK.getRGB() : Color.WHITE
+							.getRGB();
+				tile.setRGB(i, 0, rgb);
+				tile.setRGB(0, i, rgb);
+			}
+			tp = new TexturePaint(tile, new Rectangle(0, 0, zoom, zoom));
+			gridPatterns.put(zoom, tp);
+		}
+		return tp;
 	}
 
 	public void paintGrid(Graphics g) {
-		int cw = cache.getWidth() * zoom;
-		int ch = cache.getHeight() * zoom;
+		Rectangle r = new Rectangle(0, 0, image.getWidth() * zoom + 1,
+				image.getHeight() * zoom + 1);
+		Rectangle clip = g.getClipBounds();
+		if (clip != null)
+			r = r.intersection(clip);
+		if (r.isEmpty())
+			return;
+
+		Graphics2D g2 = (Graphics2D) g;
+		Paint old = g2.getPaint();
+		g2.setPaint(getGridPattern());
+		g2.fillRect(r.x, r.y, r.width, r.height);
+		g2.setPaint(old);
+	}
+
+	/**
+	 * Shows img stretched over the part r of the image until it is called
+	 * again with null, without touching the image or its history.
+	 */
+	public void setPreview(BufferedImage img, Rectangle r) {
+		if (previewRect != null)
+			repaint(new Rectangle(previewRect));
+		preview = img;
+		previewRect = r;
+		if (r != null)
+			repaint(new Rectangle(r));
+	}
 
-		g.setColor(invertGrid ? Color.WHITE : Color.GRAY);
+	/**
+	 * Shows img stretched over the whole image, under it, so that it stands
+	 * in for the tiles not loaded yet; null removes it.
+	 */
+	public void setPlaceholder(BufferedImage img) {
+		placeholder = img;
+		repaint();
+	}
 
-		for (int y = 0; y <= ch; y += zoom)
-			g.drawLine(0, y, cw, y);
-		for (int x = 0; x <= cw; x += zoom)
-			g.drawLine(x, 0, x, ch);
+	/** @return the image pixels inside the visible part of the canvas */
+	public Rectangle getVisibleImageRect() {
+		return imageRect(getVisibleRect());
 	}
 
 	public void setZoom(int zoom) {
 		this.zoom = zoom;
-		if (zoom >= 8)
-			redrawGrid();
 	}
 
 	public void zoomIn() {
 		if (zoom < 32) {
 			zoom *= 2;
-			redrawGrid();
 			updateUI();
 		}
 	}
@@ -103,7 +454,6 @@ public class Canvas extends JLabel {
 	public void zoomOut() {
 		if (zoom > 1) {
 			zoom /= 2;
-			redrawGrid();
 			updateUI();
 		}
 	}
@@ -123,29 +473,94 @@ public class Canvas extends JLabel {
 
 	@Override
 	public void paint(Graphics g) {
+		long allocated = PAINT_STATS ? allocatedBytes() : 0;
+		overlayAllocations = 0;
 		super.paint(g);
 
-		int cw = cache.getWidth() * zoom;
-		int ch = cache.getHeight() * zoom;
-
-		g.drawImage(raster, 0, 0, raster.getWidth() * zoom, raster.getHeight()
-				* zoom, null);
-		g.drawImage(cache, 0, 0, cw, ch, null);
-		if (active != null) {
-			BufferedImage activeImg = new BufferedImage(cache.getWidth(),
-					cache.getHeight(), BufferedImage.TYPE_INT_ARGB);
-			active.paint(activeImg.getGraphics());
-			g.drawImage(activeImg, 0, 0, cw, ch, null);
-		}
+		int cw = image.getWidth() * zoom;
+		int ch = image.getHeight() * zoom;
 
-		if (isGridDrawn && zoom >= 8) {
-			if (invertGrid)
-				g.setXORMode(Color.BLACK);
-			g.drawImage(grid, 0, 0, null);
-			if (invertGrid)
-				g.setPaintMode();
-		}
+		((Graphics2D) g).setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+				RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+		if (placeholder != null)
+			g.drawImage(placeholder, 0, 0, cw, ch, null);
+		image.draw(g, visibleImageRect(g), zoom);
+		if (active != null)
+			paintActive(g);
+		if (preview != null)
+			g.drawImage(preview, previewRect.x * zoom, previewRect.y * zoom,
+					previewRect.width * zoom, previewRect.height * zoom, null);
+
+		if (isGridDrawn && zoom >= 8)
+			paintGrid(g);
 
 		g.clipRect(0, 0, cw, ch);
+
+		if (PAINT_STATS)
+			System.out.println("repaint " + ++paints + ": "
+					+ (allocatedBytes() - allocated) + " bytes allocated, "
+					+ overlayAllocations + " overlay buffers");
+	}
+
+	/**
+	 * Draws the active action through the overlay buffer, limited to its
+	 * bounds and to the part of them being repainted.
+	 */
+	protected void paintActive(Graphics g) {
+		Rectangle r = visibleImageRect(g);
+		if (active instanceof BoundedImageAction)
+			r = r.intersection(((BoundedImageAction) active).getBounds());
+		if (r.isEmpty())
+			return;
+
+		if (overlay == null || overlay.getWidth() < r.width
+				|| overlay.getHeight() < r.height) {
+			int w = r.width, h = r.height;
+			if (overlay != null) {
+				w = Math.max(w, overlay.getWidth());
+				h = Math.max(h, overlay.getHeight());
+			}
+			overlay = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+			overlayAllocations++;
+		}
+
+		Graphics2D og = overlay.createGraphics();
+		og.setComposite(AlphaComposite.Clear);
+		og.fillRect(0, 0, r.width, r.height);
+		og.setComposite(AlphaComposite.SrcOver);
+		og.translate(-r.x, -r.y);
+		og.clipRect(r.x, r.y, r.width, r.height);
+		active.paint(og);
+		og.dispose();
+
+		g.drawImage(overlay, r.x * zoom, r.y * zoom, (r.x + r.width) * zoom,
+				(r.y + r.height) * zoom, 0, 0, r.width, r.height, null);
+	}
+
+	/**
+	 * @return the image pixels covered by the clip of g, so that painting
+	 *         costs depend on the viewport rather than on the image size
+	 */
+	protected Rectangle visibleImageRect(Graphics g) {
+		return imageRect(g.getClipBounds());
+	}
+
+	/** @return the image pixels under clip, or all of them if it is null */
+	protected Rectangle imageRect(Rectangle clip) {
+		Rectangle r = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+		if (clip == null)
+			return r;
+		int x1 = clip.x / zoom, y1 = clip.y / zoom;
+		int x2 = (clip.x + clip.width + zoom - 1) / zoom;
+		int y2 = (clip.y + clip.height + zoom - 1) / zoom;
+		return r.intersection(new Rectangle(x1, y1, x2 - x1, y2 - y1));
+	}
+
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
 	}
 }
@@ -0,0 +1,307 @@
+package org.pixie;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+
+/**
+ * Convolves ARGB images like {@link ConvolveOp}, in parallel over row bands
+ * or tiles. Each band reads the rows around it that the kernel needs, and
+ * separable kernels such as a box blur run as two 1-D passes.
+ * <p>
+ * The results are those of ConvolveOp to the bit: like its native code,
+ * the kernel is centred whatever its origin, with even sizes padded to the
+ * next odd one, and its taps are rounded to the fixed point ConvolveOp
+ * uses. The sums are then exact in doubles, whatever their order, and are
+ * truncated.
+ */
+public class Convolver {
+	/** xOrigin and yOrigin are also the width of the border left alone */
+	private final int kw, kh, xOrigin, yOrigin, edge;
+	private final double[] k;
+	/** 1-D factors with k[j * kw + i] == col[j] * row[i], or null */
+	private int[] row;
+	private double[] col;
+
+	/**
+	 * @param edge
+	 *            ConvolveOp.EDGE_ZERO_FILL or ConvolveOp.EDGE_NO_OP, for the
+	 *            pixels the kernel does not fit around
+	 */
+	public Convolver(Kernel kernel, int edge) {
+		kw = kernel.getWidth();
+		kh = kernel.getHeight();
+		xOrigin = kw / 2;
+		yOrigin = kh / 2;
+		// ConvolveOp flips the kernel; keep it flipped to walk it forwards
+		float[] data = kernel.getKernelData(null);
+		k = new double[data.length];
+		for (int i = 0; i < data.length; i++)
+			k[i] = data[data.length - 1 - i];
+		quantize();
+		this.edge = edge;
+		factor();
+	}
+
+	/**
+	 * Rounds the taps to multiples of 2^-(scale - 8), as the native code of
+	 * ConvolveOp does for 8-bit channels, scale fitting the larger of the
+	 * sums of the positive and the negative taps into 31 bits.
+	 */
+	private void quantize() {
+		double pos = 0, neg = 0;
+		for (double v : k)
+			if (v > 0)
+				pos += v;
+			else
+				neg -= v;
+		double sum = Math.max(pos, neg);
+		if (sum == 0)
+			return;
+		int scale = Math.min(31, 30 - Math.getExponent(sum));
+		double norm = Math.scalb(1.0, scale - 8);
+		long[] q = new long[k.length];
+		long qpos = 0, qneg = 0;
+		for (int i = 0; i < k.length; i++) {
+			q[i] = k[i] > 0 ? (long) (k[i] * norm + 0.5) : (long) (k[i]
+					* norm - 0.5);
+			if (q[i] > 0)
+				qpos += q[i];
+			else
+				qneg -= q[i];
+		}
+		// rounding up may overflow, in which case ConvolveOp truncates
+		boolean truncate = Math.max(qpos, qneg) >= 1 << 23;
+		for (int i = 0; i < k.length; i++)
+			k[i] = (truncate ? (long) (k[i] * norm) : q[i]) / norm;
+	}
+
+	/**
+	 * Splits the kernel into a column times a row of small integers, if it
+	 * is separable that way; both passes are then exact too.
+	 */
+	private void factor() {
+		int p = 0;
+		for (int i = 1; i < k.length; i++)
+			if (Math.abs(k[i]) > Math.abs(k[p]))
+				p = i;
+		if (k[p] == 0)
+			return;
+		// divide the row of p by its smallest tap that is not zero
+		int y = p / kw, m = p % kw;
+		for (int i = 0; i < kw; i++)
+			if (k[y * kw + i] != 0
+					&& Math.abs(k[y * kw + i]) < Math.abs(k[y * kw + m]))
+				m = i;
+		int[] r = new int[kw];
+		double[] c = new double[kh];
+		for (int i = 0; i < kw; i++) {
+			double v = k[y * kw + i] / k[y * kw + m];
+			if (v != Math.rint(v) || Math.abs(v) > 256)
+				return;
+			r[i] = (int) v;
+		}
+		for (int j = 0; j < kh; j++)
+			c[j] = k[j * kw + m] * r[m];
+		for (int j = 0; j < kh; j++)
+			for (int i = 0; i < kw; i++)
+				if (c[j] * r[i] != k[j * kw + i])
+					return;
+		row = r;
+		col = c;
+	}
+
+	public boolean isSeparable() {
+		return row != null;
+	}
+
+	public BufferedImage filter(BufferedImage src) {
+		final int w = src.getWidth(), h = src.getHeight();
+		int[] data = TiledImage.argbData(src);
+		if (data == null) {
+			data = new int[w * h];
+			src.getRGB(0, 0, w, h, data, 0, w);
+		}
+		final int[] in = data;
+		final int[] out = new int[w * h];
+		final Rectangle all = new Rectangle(0, 0, w, h);
+		Parallel.forRange(0, h, Math.max(16, Parallel.grain(h)),
+				new Parallel.Range() {
+					public void run(int from, int to) {
+						convolve(in, all, out, from * w, new Rectangle(0,
+								from, w, to - from), w, h);
+					}
+				});
+		return TiledImage.wrap(out, w, h);
+	}
+
+	public TiledImage filter(TiledImage src) {
+		return filter(src, null);
+	}
+
+	/**
+	 * Convolves each tile on its own, reading it with a halo of the pixels
+	 * around it.
+	 *
+	 * @param progress
+	 *            stepped once per tile, or null
+	 */
+	public TiledImage filter(final TiledImage src, final Progress progress) {
+		final int w = src.getWidth(), h = src.getHeight();
+		final int tilesX = src.getTilesX();
+		final TiledImage dst = new TiledImage(w, h, src.getStore());
+		if (progress != null)
+			progress.addTotal(tilesX * src.getTilesY());
+		Parallel.forRange(0, tilesX * src.getTilesY(), 1,
+				new Parallel.Range() {
+					public void run(int from, int to) {
+						for (int i = from; i < to; i++) {
+							if (progress != null)
+								progress.step();
+							Rectangle or = src.getTileBounds(i % tilesX, i
+									/ tilesX);
+							Rectangle ir = new Rectangle(or.x - xOrigin, or.y
+									- yOrigin, or.width + kw - 1, or.height
+									+ kh - 1).intersection(new Rectangle(0,
+									0, w, h));
+							int[] in = TiledImage.argbData(src.getImage(ir));
+							int[] out = new int[or.width * or.height];
+							convolve(in, ir, out, 0, or, w, h);
+							dst.setPixels(TiledImage.wrap(out, or.width,
+									or.height), or.x, or.y);
+						}
+					}
+				});
+		return dst;
+	}
+
+	/**
+	 * Computes the pixels inside or, writing them row by row into out from
+	 * offset off.
+	 *
+	 * @param in
+	 *            the source pixels inside ir, which covers or and as much of
+	 *            its surroundings as the kernel needs
+	 * @param w
+	 *            the width of the whole image
+	 * @param h
+	 *            the height of the whole image
+	 */
+	protected void convolve(int[] in, Rectangle ir, int[] out, int off,
+			Rectangle or, int w, int h) {
+		// the pixels the kernel fits around
+		int x1 = Math.max(or.x, xOrigin);
+		int x2 = Math.min(or.x + or.width, w - xOrigin);
+		int y1 = Math.max(or.y, yOrigin);
+		int y2 = Math.min(or.y + or.height, h - yOrigin);
+
+		for (int y = or.y; y < or.y + or.height; y++) {
+			boolean inside = y >= y1 && y < y2;
+			for (int x = or.x; x < or.x + or.width; x++) {
+				if (inside && x == x1 && x1 < x2)
+					x = x2;
+				if (x >= or.x + or.width)
+					break;
+				out[off + (y - or.y) * or.width + x - or.x] = edge == ConvolveOp.EDGE_NO_OP ? in[(y - ir.y)
+						* ir.width + x - ir.x]
+						: 0;
+			}
+		}
+		if (x1 >= x2 || y1 >= y2)
+			return;
+
+		if (isSeparable())
+			convolveSeparable(in, ir, out, off, or, x1, x2, y1, y2);
+		else
+			convolveFull(in, ir, out, off, or, x1, x2, y1, y2);
+	}
+
+	private void convolveFull(int[] in, Rectangle ir, int[] out, int off,
+			Rectangle or, int x1, int x2, int y1, int y2) {
+		// the taps that are not zero, as offsets into in
+		int n = 0;
+		for (int i = 0; i < k.length; i++)
+			if (k[i] != 0)
+				n++;
+		double[] f = new double[n];
+		int[] d = new int[n];
+		n = 0;
+		for (int j = 0; j < kh; j++)
+			for (int i = 0; i < kw; i++)
+				if (k[j * kw + i] != 0) {
+					f[n] = k[j * kw + i];
+					d[n++] = j * ir.width + i;
+				}
+
+		for (int y = y1; y < y2; y++) {
+			int p = (y - yOrigin - ir.y) * ir.width + x1 - xOrigin - ir.x;
+			int o = off + (y - or.y) * or.width + x1 - or.x;
+			for (int x = x1; x < x2; x++, p++) {
+				double a = 0, r = 0, g = 0, b = 0;
+				for (int t = 0; t < n; t++) {
+					double ft = f[t];
+					int c = in[p + d[t]];
+					a += ft * (c >>> 24);
+					r += ft * ((c >> 16) & 0xff);
+					g += ft * ((c >> 8) & 0xff);
+					b += ft * (c & 0xff);
+				}
+				out[o++] = pack(a, r, g, b);
+			}
+		}
+	}
+
+	private void convolveSeparable(int[] in, Rectangle ir, int[] out,
+			int off, Rectangle or, int x1, int x2, int y1, int y2) {
+		int tw = x2 - x1, th = y2 - y1 + kh - 1;
+		double[] tmp = new double[tw * th * 4];
+
+		// horizontal pass, over the rows the vertical pass will need
+		for (int ty = 0; ty < th; ty++) {
+			int p = (y1 - yOrigin + ty - ir.y) * ir.width + x1 - xOrigin - ir.x;
+			for (int tx = 0; tx < tw; tx++, p++) {
+				int a = 0, r = 0, g = 0, b = 0;
+				for (int i = 0; i < kw; i++) {
+					int f = row[i];
+					int c = in[p + i];
+					a += f * (c >>> 24);
+					r += f * ((c >> 16) & 0xff);
+					g += f * ((c >> 8) & 0xff);
+					b += f * (c & 0xff);
+				}
+				int t = (ty * tw + tx) * 4;
+				tmp[t] = a;
+				tmp[t + 1] = r;
+				tmp[t + 2] = g;
+				tmp[t + 3] = b;
+			}
+		}
+
+		// vertical pass
+		for (int y = y1; y < y2; y++) {
+			int o = off + (y - or.y) * or.width + x1 - or.x;
+			for (int x = x1; x < x2; x++) {
+				double a = 0, r = 0, g = 0, b = 0;
+				int t = ((y - y1) * tw + x - x1) * 4;
+				for (int j = 0; j < kh; j++, t += tw * 4) {
+					double f = col[j];
+					a += f * tmp[t];
+					r += f * tmp[t + 1];
+					g += f * tmp[t + 2];
+					b += f * tmp[t + 3];
+				}
+				out[o++] = pack(a, r, g, b);
+			}
+		}
+	}
+
+	private static int pack(double a, double r, double g, double b) {
+		return clamp(a) << 24 | clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+	}
+
+	private static int clamp(double v) {
+		int i = (int) v;
+		return i < 0 ? 0 : i > 255 ? 255 : i;
+	}
+}
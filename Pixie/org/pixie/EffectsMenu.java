@@ -1,25 +1,41 @@
 package org.pixie;
 
-import java.awt.AlphaComposite;
 import java.awt.Color;
-import java.awt.Composite;
-import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
-import java.awt.image.BufferedImageOp;
 import java.awt.image.ConvolveOp;
+import java.awt.image.ImagingOpException;
 import java.awt.image.Kernel;
-import java.awt.image.RescaleOp;
-import java.io.IOException;
-import javax.imageio.ImageIO;
-
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JButton;
+import javax.swing.JLabel;
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+import org.pixie.ImageAction.FilterImageAction;
+import org.pixie.ImageAction.HeavyImageAction;
+import org.pixie.ImageAction.PointImageAction;
 
 public class EffectsMenu extends JMenu implements ActionListener {
 	private static final long serialVersionUID = 1L;
@@ -27,17 +43,269 @@ public class EffectsMenu extends JMenu implements ActionListener {
 	JMenuItem blur, value, invert, fade, histogram, shear, sharpen, emboss,
 			mean_removal, smooth, gamaCor;
 
-	public class Blur implements ImageAction {
+	/**
+	 * An effect over the whole image. Its result is kept for the version of
+	 * the image it was computed from, so replaying the history over it again
+	 * costs a snapshot instead of running the effect.
+	 */
+	public static abstract class Effect implements FilterImageAction,
+			HeavyImageAction {
+		private long inputVersion;
+		/** let go of when memory runs low, and then computed again */
+		private SoftReference<TiledImage> result;
+
+		/**
+		 * @param progress
+		 *            told about each step done, or null
+		 * @return the new image; source must be left as it is
+		 */
+		protected abstract TiledImage apply(TiledImage source,
+				Progress progress);
+
+		public void recalculate(TiledImage source) {
+			recalculate(source, null);
+		}
+
+		/** Computes and keeps the result for source, from any thread. */
+		public synchronized void recalculate(TiledImage source,
+				Progress progress) {
+			result = new SoftReference<TiledImage>(apply(source, progress));
+			inputVersion = source.getVersion();
+		}
+
+		public synchronized TiledImage filter(TiledImage source) {
+			TiledImage img = null;
+			if (result != null && inputVersion == source.getVersion())
+				img = result.get();
+			while (img == null) {
+				recalculate(source);
+				img = result.get();
+			}
+			return img.snapshot();
+		}
+
+		/**
+		 * @return a snapshot of the result kept for the image version given,
+		 *         or null if there is none
+		 */
+		synchronized TiledImage kept(long inputVersion) {
+			TiledImage img = result == null || this.inputVersion != inputVersion ? null
+					: result.get();
+			return img == null ? null : img.snapshot();
+		}
+
+		/**
+		 * Effects are applied through filter(), which needs no canvas; this
+		 * draws the last result computed, while it is still kept.
+		 */
+		public void paint(Graphics g) {
+			TiledImage img = result == null ? null : result.get();
+			if (img != null)
+				g.drawImage(img.toBufferedImage(), 0, 0, null);
+		}
+	}
+
+	public static abstract class PointEffect extends Effect implements
+			PointImageAction {
+		protected TiledImage apply(TiledImage source, Progress progress) {
+			TiledImage img = source.snapshot();
+			getPointOp().apply(img, progress);
+			return img;
+		}
+	}
+
+	/**
+	 * An effect drawing transformed copies of the image over itself, each
+	 * copy taken after the previous one was drawn. When the image is opaque
+	 * and a run of transforms each maps the image onto itself, as flips and
+	 * square rotations do, the copies are the image moved around and the
+	 * run is drawn once, through the product of its transforms. Copies are
+	 * drawn a tile at a time, from the part of the image each tile maps
+	 * back to.
+	 */
+	public static abstract class TransformEffect extends Effect {
+		/** @return the transforms to draw the image through, in order */
+		protected abstract List<AffineTransform> getTransforms(int width,
+				int height);
+
+		protected TiledImage apply(TiledImage source, Progress progress) {
+			TiledImage img = source.snapshot();
+			int w = img.getWidth(), h = img.getHeight();
+			boolean opaque = PngWriter.isOpaque(source);
+			AffineTransform pending = null;
+			for (AffineTransform t : getTransforms(w, h)) {
+				if (pending != null && opaque && mapsOntoItself(pending, w, h)
+						&& mapsOntoItself(t, w, h)) {
+					t = new AffineTransform(t);
+					t.concatenate(pending);
+				} else if (pending != null)
+					drawOver(img, pending, progress);
+				pending = t;
+			}
+			if (pending != null)
+				drawOver(img, pending, progress);
+			return img;
+		}
+
+		/** @return whether t moves whole pixels of the image within it */
+		private static boolean mapsOntoItself(AffineTransform t, int w, int h) {
+			if ((t.getType() & ~(AffineTransform.TYPE_TRANSLATION
+					| AffineTransform.TYPE_QUADRANT_ROTATION | AffineTransform.TYPE_FLIP)) != 0)
+				return false;
+			Rectangle r = new Rectangle(0, 0, w, h);
+			return t.createTransformedShape(r).getBounds2D().equals(r);
+		}
+
+		/**
+		 * Draws a copy of img through t over it, one tile at a time.
+		 *
+		 * @param progress
+		 *            stepped once per tile, or null
+		 */
+		protected void drawOver(TiledImage img, AffineTransform t,
+				Progress progress) {
+			AffineTransform inverse;
+			try {
+				inverse = t.createInverse();
+			} catch (NoninvertibleTransformException e) {
+				throw new ImagingOpException("Unable to invert transform " + t);
+			}
+			TiledImage copy = img.snapshot();
+			Rectangle all = new Rectangle(0, 0, img.getWidth(), img.getHeight());
+			if (progress != null)
+				progress.addTotal(img.getTilesX() * img.getTilesY());
+			for (int ty = 0; ty < img.getTilesY(); ty++)
+				for (int tx = 0; tx < img.getTilesX(); tx++) {
+					if (progress != null)
+						progress.step();
+					Rectangle d = img.getTileBounds(tx, ty);
+					// a pixel wider, for the samples rounding picks
+					Rectangle r = inverse.createTransformedShape(d).getBounds();
+					r.grow(1, 1);
+					r = r.intersection(all);
+					if (r.isEmpty())
+						continue;
+					BufferedImage part = copy.getImage(r);
+					TiledImage.Tile tile = img.getWritableTile(tx, ty);
+					tile.lock(true);
+					try {
+						Graphics2D g = tile.getImage().createGraphics();
+						g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+								RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+						g.translate(-d.x, -d.y);
+						g.transform(t);
+						g.drawImage(part, r.x, r.y, null);
+						g.dispose();
+					} finally {
+						tile.unlock();
+					}
+				}
+		}
+	}
+
+	/**
+	 * Effects applied one after the other as a single effect. Each run of
+	 * point effects is fused into one pass through one combined table, and
+	 * each run of transform effects shares one copy of the image, so a
+	 * chain of five point effects costs about as much as one. The canvas
+	 * also replays runs of such effects from its history as a chain.
+	 */
+	public static class Chain extends Effect {
+		private final List<Effect> stages = new ArrayList<Effect>();
+
+		public Chain(List<? extends Effect> effects) {
+			for (Effect e : effects)
+				add(e);
+		}
+
+		private void add(Effect e) {
+			if (e instanceof Chain) {
+				for (Effect s : ((Chain) e).stages)
+					add(s);
+				return;
+			}
+			int last = stages.size() - 1;
+			Effect prev = last < 0 ? null : stages.get(last);
+			if (prev instanceof PointEffect && e instanceof PointEffect)
+				stages.set(last, new FusedPointEffect(((PointEffect) prev)
+						.getPointOp().then(((PointEffect) e).getPointOp())));
+			else if (prev instanceof TransformEffect
+					&& e instanceof TransformEffect)
+				stages.set(last, new FusedTransformEffect(
+						(TransformEffect) prev, (TransformEffect) e));
+			else
+				stages.add(e);
+		}
+
+		/** @return the passes the chain makes over the image */
+		public int getPasses() {
+			return stages.size();
+		}
+
+		protected TiledImage apply(TiledImage source, Progress progress) {
+			TiledImage img = source;
+			for (Effect e : stages)
+				img = e.apply(img, progress);
+			return img;
+		}
+	}
+
+	static class FusedPointEffect extends PointEffect {
+		final PointOp op;
+
+		FusedPointEffect(PointOp op) {
+			this.op = op;
+		}
+
+		public PointOp getPointOp() {
+			return op;
+		}
+	}
+
+	static class FusedTransformEffect extends TransformEffect {
+		final TransformEffect first, second;
+
+		FusedTransformEffect(TransformEffect first, TransformEffect second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		protected List<AffineTransform> getTransforms(int width, int height) {
+			List<AffineTransform> ts = new ArrayList<AffineTransform>(
+					first.getTransforms(width, height));
+			ts.addAll(second.getTransforms(width, height));
+			return ts;
+		}
+	}
+
+	/**
+	 * A convolution effect. The border the kernel does not fit around keeps
+	 * its pixels, as it did when the ConvolveOp result was drawn over them.
+	 */
+	public static abstract class ConvolveEffect extends Effect {
+		Convolver convolver;
+
+		protected abstract Kernel getKernel();
+
+		public Convolver getConvolver() {
+			if (convolver == null)
+				convolver = new Convolver(getKernel(), ConvolveOp.EDGE_NO_OP);
+			return convolver;
+		}
+
+		protected TiledImage apply(TiledImage source, Progress progress) {
+			return getConvolver().filter(source, progress);
+		}
+	}
+
+	public static class Blur extends ConvolveEffect {
 		public int amount;
 
 		public Blur(int amt) {
 			amount = amt;
 		}
 
-		public void paint(Graphics g) {
-			Canvas c = pixie.canvas;
-			Graphics2D g2 = (Graphics2D) g;
-
+		protected Kernel getKernel() {
 			// create the blur kernel
 			int numCoords = amount * amount;
 			float blurFactor = 1.0f / numCoords;
@@ -46,267 +314,333 @@ public class EffectsMenu extends JMenu implements ActionListener {
 			for (int j = 0; j < numCoords; j++)
 				blurKernel[j] = blurFactor;
 
-			Kernel k = new Kernel(amount, amount, blurKernel);
-			ConvolveOp blur = new ConvolveOp(k, ConvolveOp.EDGE_NO_OP, null);
-			g2.drawImage(c.getRenderImage(), blur, 0, 0);
+			return new Kernel(amount, amount, blurKernel);
 		}
 	}
 
-	public class GamaCorrection implements ImageAction {
+	public static class GamaCorrection extends PointEffect {
 		double gamma;
-		public GamaCorrection(double gamma1)
-		{
-		gamma = gamma1;
-		}
-	
-   public void paint( Graphics g) 
-	{
-	   Graphics2D g2 = (Graphics2D) g;
-	   BufferedImage gamma_cor = pixie.canvas.getRenderImage();
-   
-	
-	    int alpha, red, green, blue;
-	    int newPixel;
-	
-	    double gamma_new = 1 / gamma;
-	
-	    //BufferedImage gamma_cor = new BufferedImage(original.getWidth(), original.getHeight(), original.getType());
-	    int width=gamma_cor.getWidth();
-	    int height=gamma_cor.getHeight();
-	    for(int i=0; i< width; i++)
-	    {
-	    	for(int j=0; j<height; j++) 
-	    		{
-	
-	        // Get pixels by R, G, B
-	        alpha = new Color(gamma_cor.getRGB(i, j)).getAlpha();
-	        red = new Color(gamma_cor.getRGB(i, j)).getRed();
-	        green = new Color(gamma_cor.getRGB(i, j)).getGreen();
-	        blue = new Color(gamma_cor.getRGB(i, j)).getBlue();
-	
-	        red = (int) (255 * (Math.pow((double) red / (double) 255, gamma_new)));
-	        green = (int) (255 * (Math.pow((double) green / (double) 255, gamma_new)));
-	        blue = (int) (255 * (Math.pow((double) blue / (double) 255, gamma_new)));
-	
-	        newPixel = (alpha << 24) | (red << 16) | (green << 8) | blue;
-	
-	        gamma_cor.setRGB(i, j, newPixel);
+		PointOp op;
 
-       }
-     }  
-    g2.drawImage(gamma_cor,null,0,0);
-}
+		public GamaCorrection(double gamma1) {
+			gamma = gamma1;
+		}
 
+		public PointOp getPointOp() {
+			if (op == null)
+				op = PointOp.gamma(gamma);
+			return op;
+		}
 	}
-	public class Mean_Removal implements ImageAction {
-		public int amount;
-
-		public void paint(Graphics g) {
-			Canvas c = pixie.canvas;
-			Graphics2D g2 = (Graphics2D) g;
 
-			BufferedImage temp = pixie.canvas.getRenderImage();
-
-			Kernel kernel = new Kernel(3, 3, new float[] { -1, -1, -1, -1, 9,
-					-1, -1, -1, -1 });
-
-			BufferedImageOp op = new ConvolveOp(kernel);
-			temp = op.filter(temp, null);
+	public static class Mean_Removal extends ConvolveEffect {
+		public int amount;
 
-			g2.drawImage(c.getRenderImage(), op, 0, 0);
+		protected Kernel getKernel() {
+			return new Kernel(3, 3, new float[] { -1, -1, -1, -1, 9, -1, -1,
+					-1, -1 });
 		}
 	}
 	
-	public class Rotate90Right implements ImageAction {
-		public void paint(Graphics g) {
-			Canvas c = pixie.canvas;
-			Graphics2D g2 = (Graphics2D) g;
-			
-			BufferedImage temp = pixie.canvas.getRenderImage();
-			
-			BufferedImageOp op  =new AffineTransformOp(AffineTransform.getRotateInstance(
-			          Math.PI / 2, 0+temp.getHeight()/2, 0+temp.getWidth()/2),
-			          AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
-			temp = op.filter(temp, null);
-			g2.drawImage(c.getRenderImage(), op, 0, 0);
+	public static class Rotate90Right extends TransformEffect {
+		protected List<AffineTransform> getTransforms(int width, int height) {
+			return Arrays.asList(AffineTransform.getRotateInstance(
+			          Math.PI / 2, 0+height/2, 0+width/2));
 		}
-		
 	}
 	
-	public class Rotate90Left implements ImageAction {
-		public void paint(Graphics g) {
-			Canvas c = pixie.canvas;
-			Graphics2D g2 = (Graphics2D) g;
-			
-			BufferedImage temp = pixie.canvas.getRenderImage();
-			
-			BufferedImageOp op  =new AffineTransformOp(AffineTransform.getRotateInstance(
-			          -Math.PI / 2, 0+temp.getHeight()/2, 0+temp.getWidth()/2),
-			          AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
-			temp = op.filter(temp, null);
-			g2.drawImage(c.getRenderImage(), op, 0, 0);
+	public static class Rotate90Left extends TransformEffect {
+		protected List<AffineTransform> getTransforms(int width, int height) {
+			return Arrays.asList(AffineTransform.getRotateInstance(
+			          -Math.PI / 2, 0+height/2, 0+width/2));
 		}
-		
 	}
 	
-	public class Mirror implements ImageAction {
-		public void paint(Graphics g) {
-			Canvas c = pixie.canvas;
-			Graphics2D g2 = (Graphics2D) g;
-			
-			BufferedImage temp = pixie.canvas.getRenderImage();
+	public static class Mirror extends TransformEffect {
+		protected List<AffineTransform> getTransforms(int width, int height) {
 			AffineTransform mirrorTransform;
-			mirrorTransform = AffineTransform.getTranslateInstance(temp.getWidth(), 0);
+			mirrorTransform = AffineTransform.getTranslateInstance(width, 0);
 			mirrorTransform.scale(-1.0, 1.0);
-			BufferedImageOp op  =new AffineTransformOp(mirrorTransform,
-			          AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
-			temp = op.filter(temp, null);
-			g2.drawImage(c.getRenderImage(), op, 0, 0);
+			return Arrays.asList(mirrorTransform);
 		}
-		
 	}
 	
-	public class MirrorOX implements ImageAction {
-		public void paint(Graphics g) {
-			Canvas c = pixie.canvas;
-			Graphics2D g2 = (Graphics2D) g;
-			
-			BufferedImage temp = pixie.canvas.getRenderImage();
+	public static class MirrorOX extends TransformEffect {
+		protected List<AffineTransform> getTransforms(int width, int height) {
 			AffineTransform mirrorTransform;
-			mirrorTransform = AffineTransform.getTranslateInstance(temp.getWidth(), 0);
+			mirrorTransform = AffineTransform.getTranslateInstance(width, 0);
 			mirrorTransform.scale(-1.0, 1.0);
-			BufferedImageOp op  =new AffineTransformOp(mirrorTransform,
-			          AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
-			temp = op.filter(temp, null);
-			g2.drawImage(c.getRenderImage(), op, 0, 0);
-			BufferedImageOp op2  =new AffineTransformOp(AffineTransform.getRotateInstance(
-			          Math.PI, 0+temp.getHeight()/2, 0+temp.getWidth()/2),
-			          AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
-			temp = op2.filter(temp, null);
-			g2.drawImage(c.getRenderImage(), op2, 0, 0);
+			return Arrays.asList(mirrorTransform, AffineTransform.getRotateInstance(
+			          Math.PI, 0+height/2, 0+width/2));
 		}
-		
 	}
 
 
-	public class Smooth implements ImageAction {
+	public static class Smooth extends ConvolveEffect {
 		public int amount;
 
-		public void paint(Graphics g) {
-			Canvas c = pixie.canvas;
-			Graphics2D g2 = (Graphics2D) g;
-
-			BufferedImage temp = pixie.canvas.getRenderImage();
-
-			Kernel kernel = new Kernel(3, 3,
+		protected Kernel getKernel() {
+			return new Kernel(3, 3,
 					new float[] { (float) 1 / 9, (float) 1 / 9, (float) 1 / 9,
 							(float) 1 / 9, (float) 1 / 9, (float) 1 / 9,
 							(float) 1 / 9, (float) 1 / 9, (float) 1 / 9 });
-
-			BufferedImageOp op = new ConvolveOp(kernel);
-			temp = op.filter(temp, null);
-
-			g2.drawImage(c.getRenderImage(), op, 0, 0);
-
 		}
 	}
 
-	public class Emboss implements ImageAction {
+	public static class Emboss extends ConvolveEffect {
 		public int amount;
 
-		public void paint(Graphics g) {
-			Canvas c = pixie.canvas;
-			Graphics2D g2 = (Graphics2D) g;
-
-			BufferedImage temp = pixie.canvas.getRenderImage();
-
-			Kernel kernel = new Kernel(3, 3, new float[] { -2, 0, 0, 0, 1, 0,
-					0, 0, 2 });
-
-			BufferedImageOp op = new ConvolveOp(kernel);
-			temp = op.filter(temp, null);
-
-			g2.drawImage(c.getRenderImage(), op, 0, 0);
-
+		protected Kernel getKernel() {
+			return new Kernel(3, 3, new float[] { -2, 0, 0, 0, 1, 0, 0, 0, 2 });
 		}
 	}
 
-	public class Value implements ImageAction {
+	public static class Value extends PointEffect {
 		public float amount;
+		PointOp op;
 
 		public Value(float amt) {
 			amount = amt;
 		}
 
-		public void paint(Graphics g) {
-			Canvas c = pixie.canvas;
-			Graphics2D g2 = (Graphics2D) g;
-			float[] scale = { amount, amount, amount, 1.0f }; // keep alpha
-			float[] offsets = { 0.0f, 0.0f, 0.0f, 0.0f };
-			RescaleOp value = new RescaleOp(scale, offsets, null);
-			g2.drawImage(c.getRenderImage(), value, 0, 0);
+		public PointOp getPointOp() {
+			if (op == null)
+				op = PointOp.scale(amount); // keep alpha
+			return op;
 		}
 	}
 
-	public class Invert implements ImageAction {
-		public void paint(Graphics g) {
-			Canvas c = pixie.canvas;
-			Graphics2D g2d = (Graphics2D) g;
-			float[] negFactors = { -1.0f, -1.0f, -1.0f, 1.0f }; // keep alpha
-			float[] offsets = { 255f, 255f, 255f, 0.0f };
-			RescaleOp invert = new RescaleOp(negFactors, offsets, null);
-			g2d.drawImage(c.getRenderImage(), invert, 0, 0);
+	public static class Invert extends PointEffect {
+		PointOp op;
+
+		public PointOp getPointOp() {
+			if (op == null)
+				op = PointOp.invert(); // keep alpha
+			return op;
 		}
 	}
 
-	public class Fade implements ImageAction {
+	public static class Fade extends PointEffect {
 		public Color fadeTo;
 		public float amount;
+		PointOp op;
 
 		public Fade(Color to, float amt) {
 			fadeTo = to;
 			amount = amt;
 		}
 
-		public void paint(Graphics g) {
-			Canvas c = pixie.canvas;
-			Graphics2D g2d = (Graphics2D) g;
+		public PointOp getPointOp() {
+			if (op == null)
+				op = PointOp.fade(fadeTo, amount);
+			return op;
+		}
+	}
+
+	public static class Sharpen extends ConvolveEffect {
 
-			Composite oldComp = g2d.getComposite();
-			Color oldCol = g2d.getColor();
+		protected Kernel getKernel() {
+			return new Kernel(3, 3, new float[] { 0, (float) -2 / 3, 0,
+					(float) -2 / 3, (float) 11 / 3, (float) -2 / 3, 0,
+					(float) -2 / 3, 0 });
+		}
+	}
+
+	/**
+	 * Computes an effect in the background against a snapshot of the
+	 * canvas, showing its progress in the toolbar with a cancel button. It
+	 * is committed once computed, unless the image changed in the meantime,
+	 * in which case it runs again on the new image. The last of MAX_ATTEMPTS
+	 * runs holds off editing until it is done, so that its result is for
+	 * the image it finds.
+	 */
+	protected class EffectTask extends SwingWorker<Object, Object> implements
+			ActionListener {
+		final Effect effect;
+		/** 1 for the first run, counting runs made stale by edits */
+		final int attempt;
+		final TiledImage source;
+		final Progress progress = new Progress();
+		final JPanel panel = new JPanel();
+		final JProgressBar bar = new JProgressBar(0, 100);
+		final Timer timer = new Timer(100, this);
+
+		EffectTask(Effect effect, int attempt) {
+			this.effect = effect;
+			this.attempt = attempt;
+			if (attempt == MAX_ATTEMPTS)
+				pixie.setEditable(false);
+			source = pixie.canvas.getTiledImage().snapshot();
+			// held open until done, in case New or Open replaces the image
+			if (source.getStore() != null)
+				source.getStore().retain();
+
+			JButton cancel = new JButton("Cancel");
+			cancel.addActionListener(new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					progress.cancel();
+				}
+			});
+			bar.setStringPainted(true);
+			panel.add(new JLabel(effect.getClass().getSimpleName()));
+			panel.add(bar);
+			panel.add(cancel);
+			pixie.getToolBar().add(panel);
+			pixie.getToolBar().revalidate();
+			timer.start();
+		}
+
+		@Override
+		protected Object doInBackground() {
+			effect.recalculate(source, progress);
+			return null;
+		}
+
+		/** Updates the progress bar. */
+		public void actionPerformed(ActionEvent e) {
+			int percent = progress.getPercent();
+			bar.setIndeterminate(percent < 0);
+			if (percent >= 0)
+				bar.setValue(percent);
+		}
 
-			g2d.setComposite(AlphaComposite.getInstance(
-					AlphaComposite.SRC_OVER, amount));
-			g2d.setColor(fadeTo);
-			Dimension d = c.getImageSize();
-			g2d.fillRect(0, 0, d.width, d.height);
-			g2d.setColor(oldCol);
-			g2d.setComposite(oldComp);
+		@Override
+		protected void done() {
+			timer.stop();
+			if (source.getStore() != null)
+				source.getStore().dispose();
+			pixie.getToolBar().remove(panel);
+			pixie.getToolBar().revalidate();
+			pixie.getToolBar().repaint();
+			if (attempt == MAX_ATTEMPTS && !pixie.isLoading())
+				pixie.setEditable(true);
+			running = null;
+			try {
+				get();
+				if (progress.isCancelled()) {
+					// dropped, even if it finished in the meantime
+				} else if (pixie.canvas.getTiledImage().getVersion() == source
+						.getVersion())
+					pixie.canvas.commit(effect);
+				else if (attempt < MAX_ATTEMPTS) {
+					running = new EffectTask(effect, attempt + 1);
+					running.execute();
+					return;
+				} else
+					// only New or Open change the image while editing is held
+					JOptionPane.showMessageDialog(null, "The image changed while "
+							+ effect.getClass().getSimpleName()
+							+ " was computed; it was not applied.");
+			} catch (CancellationException e) {
+				// not thrown: the task is stopped through its progress, and
+				// the worker itself is never cancelled
+			} catch (InterruptedException e) {
+				// not thrown: get() returns at once in done()
+			} catch (ExecutionException e) {
+				if (!(e.getCause() instanceof CancellationException)) {
+					e.printStackTrace();
+					JOptionPane.showMessageDialog(null, "The effect failed: "
+							+ e.getCause());
+				}
+			}
+			runNext();
 		}
 	}
 
-	public class Sharpen implements ImageAction {
+	/** runs of an effect before it is committed whatever edits followed */
+	static final int MAX_ATTEMPTS = 3;
 
-		public void paint(Graphics g) {
-			Canvas c = pixie.canvas;
-			Graphics2D g2 = (Graphics2D) g;
+	/** effects waiting for the one running to be committed */
+	protected final ArrayDeque<Effect> queue = new ArrayDeque<Effect>();
+	protected EffectTask running;
 
-			BufferedImage temp = pixie.canvas.getRenderImage();
-			Kernel kernel = new Kernel(3, 3, new float[] { 0, (float) -2 / 3,
-					0, (float) -2 / 3, (float) 11 / 3,
+	protected void runNext() {
+		if (running != null || queue.isEmpty())
+			return;
+		running = new EffectTask(queue.removeFirst(), 1);
+		running.execute();
+	}
 
-					(float) -2 / 3, 0, (float) -2 / 3, 0 });
-			BufferedImageOp op = new ConvolveOp(kernel);
-			temp = op.filter(temp, null);
+	/**
+	 * Previews an effect while its dialog is open: each value is applied to
+	 * a copy of the visible part of the canvas, shrunk to at most
+	 * PREVIEW_PIXELS, and drawn over it. A new value cancels the job still
+	 * computing the last one; the full image is only filtered on OK.
+	 */
+	protected abstract class EffectPreview implements IntegerDialog.Preview {
+		private Progress job;
+
+		protected abstract Effect create(int value);
+
+		public void show(int value) {
+			clear();
+			final Rectangle r = pixie.canvas.getVisibleImageRect();
+			if (r.isEmpty())
+				return;
+			final TiledImage source = pixie.canvas.getTiledImage().snapshot();
+			final Effect effect = create(value);
+			final Progress progress = job = new Progress();
+			Parallel.POOL.execute(new Runnable() {
+				public void run() {
+					try {
+						final BufferedImage img = effect.apply(
+								shrink(source, r), progress).toBufferedImage();
+						SwingUtilities.invokeLater(new Runnable() {
+							public void run() {
+								if (job == progress)
+									pixie.canvas.setPreview(img, r);
+							}
+						});
+					} catch (CancellationException e) {
+					}
+				}
+			});
+		}
 
-			g2.drawImage(c.getRenderImage(), op, 0, 0);
+		public void clear() {
+			if (job != null)
+				job.cancel();
+			job = null;
+			pixie.canvas.setPreview(null, null);
 		}
 	}
 
+	static final int PREVIEW_PIXELS = 512 * 512;
+
+	/** @return the part r of img, scaled down to at most PREVIEW_PIXELS */
+	protected static TiledImage shrink(TiledImage img, Rectangle r) {
+		BufferedImage part = img.getImage(r);
+		double scale = Math.sqrt((double) PREVIEW_PIXELS
+				/ ((long) r.width * r.height));
+		if (scale < 1) {
+			BufferedImage small = new BufferedImage(Math.max(1,
+					(int) (r.width * scale)), Math.max(1,
+					(int) (r.height * scale)), BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g = small.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+					RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(part, 0, 0, small.getWidth(), small.getHeight(), null);
+			g.dispose();
+			part = small;
+		}
+		TiledImage t = new TiledImage(part.getWidth(), part.getHeight());
+		t.setPixels(part, 0, 0);
+		return t;
+	}
+
+	/** Drops the waiting effects and stops the running one. */
+	public void cancelEffects() {
+		queue.clear();
+		if (running != null)
+			running.progress.cancel();
+	}
+
 	public void applyAction(ImageAction act) {
-		Canvas c = pixie.canvas;
-		c.acts.add(act);
-		c.redrawCache();
+		if (act instanceof Effect) {
+			queue.add((Effect) act);
+			runNext();
+		} else
+			pixie.canvas.commit(act);
 	}
 
 	public EffectsMenu(Pixie pixie) {
@@ -387,10 +721,15 @@ public class EffectsMenu extends JMenu implements ActionListener {
 
 	public void actionPerformed(ActionEvent e) {
 		if (e.getSource() == blur) {
+			EffectPreview p = new EffectPreview() {
+				protected Effect create(int value) {
+					return new Blur(value);
+				}
+			};
 			Integer integer = IntegerDialog.getInteger("Blur amount (1-9)", 1,
-					9, 3, 3);
+					9, 3, 3, p);
 			if (integer != null)
-				applyAction(new Blur(integer));
+				applyAction(p.create(integer));
 			return;
 		}
 
@@ -409,15 +748,25 @@ public class EffectsMenu extends JMenu implements ActionListener {
 		
 		if (e.getSource() == gamaCor)
 		{
-			Integer integer = IntegerDialog.getInteger("Fade amount (0-256)",0,256,128,64);
-			if (integer != null) applyAction(new GamaCorrection(integer));
+			EffectPreview p = new EffectPreview() {
+				protected Effect create(int value) {
+					return new GamaCorrection(value);
+				}
+			};
+			Integer integer = IntegerDialog.getInteger("Fade amount (0-256)",0,256,128,64,p);
+			if (integer != null) applyAction(p.create(integer));
 			return;
 		}
 
 		if (e.getSource() == value) {
-			Integer integer = IntegerDialog.getInteger("Value", -10, 10, 0, 5);
+			EffectPreview p = new EffectPreview() {
+				protected Effect create(int value) {
+					return new Value((value + 10) / 10.0f);
+				}
+			};
+			Integer integer = IntegerDialog.getInteger("Value", -10, 10, 0, 5, p);
 			if (integer != null)
-				applyAction(new Value((integer + 10) / 10.0f));
+				applyAction(p.create(integer));
 			return;
 		}
 		if (e.getSource() == invert) {
@@ -440,10 +789,15 @@ public class EffectsMenu extends JMenu implements ActionListener {
 		}
 
 		if (e.getSource() == fade) {
+			EffectPreview p = new EffectPreview() {
+				protected Effect create(int value) {
+					return new Fade(Color.BLACK, ((float) value) / 256.0f);
+				}
+			};
 			Integer integer = IntegerDialog.getInteger("Fade amount (0-256)",
-					0, 256, 128, 64);
+					0, 256, 128, 64, p);
 			if (integer != null)
-				applyAction(new Fade(Color.BLACK, ((float) integer) / 256.0f));
+				applyAction(p.create(integer));
 			return;
 		}
 
@@ -453,72 +807,7 @@ public class EffectsMenu extends JMenu implements ActionListener {
 		}
 
 		if (e.getSource() == histogram) {
-			BufferedImage temp = pixie.canvas.getRenderImage();
-			// Get RGB
-			int[][] bins = new int[3][256];
-			int height = temp.getHeight();
-			int width = temp.getWidth();
-
-			java.awt.image.Raster raster = temp.getRaster();
-			int max = -1;
-			for (int i = 0; i < width; i++) {
-				for (int j = 0; j < height; j++) {
-
-					int c1 = raster.getSample(i, j, 0);
-					int c2 = raster.getSample(i, j, 1);
-					int c3 = raster.getSample(i, j, 2);
-					
-					bins[0][c1]++;
-					bins[1][c2]++;
-					bins[2][c3]++;
-					max = Math.max(
-							max,
-							Math.max(bins[0][c1],
-									Math.max(bins[0][c2], bins[0][c3])));
-				}
-			}
-			BufferedImage output = new BufferedImage(255, 900,
-					BufferedImage.TYPE_INT_RGB);
-			int rgb = 0;
-			
-			for (int k = 0; k < 3; k++)
-				for (int i = 0; i < 255; i++)
-					for (int j = 0; j < 300; j++) {
-						 if (j < bins[k][i] * 300 / max) {
-							 switch (k) {
-							 case 0:
-								 rgb = (255 << 16) | (0 << 8) | 0;
-								 break;
-							 case 1:
-								 rgb = (0 << 16) | (255 << 8) | 0;
-								 break;
-							 case 2:
-								 rgb = (0 << 16) | (0 << 8) | 255;
-								 break;
-							 }
-							 output.setRGB(i, (k + 1) * 300 - j - 1, rgb);
-						 } else {
-							 rgb = (255 << 16) | (255 << 8) | 255;
-							 output.setRGB(i, (k + 1) * 300 - j - 1, rgb);
-							 
-							 }
-						 }
-
-
-			try {
-				java.io.File f = pixie.getFile(true);
-				if (f == null) {
-					javax.swing.JOptionPane.showMessageDialog(null,
-							"You haven't choose any path. Aborting!");
-					return;
-					
-				}
-				ImageIO.write(output, "PNG", f);
-			} catch (IOException e1) {
-				e1.printStackTrace();
-			}
-			javax.swing.JOptionPane.showMessageDialog(null,
-					"Histogram saved!");
+			pixie.histogramPanel.setVisible(!pixie.histogramPanel.isVisible());
 			return;
 		}
 		}
@@ -0,0 +1,257 @@
+package org.pixie;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Finds the region a flood fill covers with a scanline fill: each span of
+ * matching pixels is found in one pass along its row, and only the start
+ * of each run of candidates above and below it is pushed on the stack.
+ * Pixels match when no channel, alpha included, differs from the start
+ * pixel by more than the tolerance. {@link #matching} finds the matching
+ * pixels of the whole image instead, connected or not.
+ * <p>
+ * A TiledImage is filled in place, locking the tiles of one tile row at a
+ * time as the fill reaches them, so its pixels never need to fit on the
+ * heap at once.
+ */
+public class FloodFill {
+	/** the pixels, or null to read them from image */
+	private final int[] pixels;
+	private final TiledImage image;
+	private final int width, height, target, tolerance;
+	/** the tile row of image whose tiles are looked at, or -1 */
+	private int bandY = -1;
+	private TiledImage.Tile[] bandTiles;
+	/** the pixels of the tiles of the band locked so far, or null */
+	private int[][] bandData;
+	/** one bit per pixel already in the region */
+	private final long[] visited;
+	private int[] stack = new int[64];
+	private int size;
+
+	private final Mask mask;
+
+	/**
+	 * @param tolerance
+	 *            0 to fill only the exact color at (x, y), up to 255 to fill
+	 *            everything
+	 */
+	public FloodFill(int[] pixels, int width, int height, int x, int y,
+			int tolerance) {
+		this(pixels, null, width, height, x, y, tolerance);
+	}
+
+	public FloodFill(TiledImage source, int x, int y, int tolerance) {
+		this(null, source, source.getWidth(), source.getHeight(), x, y,
+				tolerance);
+	}
+
+	private FloodFill(int[] pixels, TiledImage image, int width, int height,
+			int x, int y, int tolerance) {
+		this.pixels = pixels;
+		this.image = image;
+		this.width = width;
+		this.height = height;
+		this.tolerance = tolerance;
+		Mask.Builder b = new Mask.Builder();
+		if (x < 0 || y < 0 || x >= width || y >= height) {
+			target = 0;
+			visited = null;
+		} else {
+			try {
+				target = pixel(x, y);
+				visited = new long[(int) (((long) width * height + 63) >>> 6)];
+				fill(x, y, b);
+			} finally {
+				unlockBand();
+			}
+		}
+		mask = b.build();
+	}
+
+	public FloodFill(BufferedImage source, int x, int y, int tolerance) {
+		this(pixels(source), source.getWidth(), source.getHeight(), x, y,
+				tolerance);
+	}
+
+	private static int[] pixels(BufferedImage img) {
+		int[] data = TiledImage.argbData(img);
+		if (data == null)
+			data = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0,
+					img.getWidth());
+		return data;
+	}
+
+	public Mask getMask() {
+		return mask;
+	}
+
+	/** @return whether argb is within tolerance of target on every channel */
+	public static boolean matches(int argb, int target, int tolerance) {
+		if (argb == target)
+			return true;
+		return Math.abs((argb >>> 24) - (target >>> 24)) <= tolerance
+				&& Math.abs(((argb >> 16) & 0xff) - ((target >> 16) & 0xff)) <= tolerance
+				&& Math.abs(((argb >> 8) & 0xff) - ((target >> 8) & 0xff)) <= tolerance
+				&& Math.abs((argb & 0xff) - (target & 0xff)) <= tolerance;
+	}
+
+	/**
+	 * Finds every pixel of the image within tolerance of target, connected
+	 * or not, scanning bands of tile rows in parallel.
+	 */
+	public static Mask matching(final TiledImage img, final int target,
+			final int tolerance) {
+		final Mask.Builder[] bands = new Mask.Builder[img.getTilesY()];
+		Parallel.forRange(0, bands.length, 1, new Parallel.Range() {
+			public void run(int from, int to) {
+				for (int ty = from; ty < to; ty++)
+					bands[ty] = scanBand(img, ty, target, tolerance);
+			}
+		});
+		Mask.Builder b = new Mask.Builder();
+		for (Mask.Builder band : bands)
+			b.add(band);
+		return b.build();
+	}
+
+	private static Mask.Builder scanBand(TiledImage img, int ty, int target,
+			int tolerance) {
+		Mask.Builder b = new Mask.Builder();
+		int tilesX = img.getTilesX();
+		TiledImage.Tile[] tiles = new TiledImage.Tile[tilesX];
+		int[][] data = new int[tilesX][];
+		for (int tx = 0; tx < tilesX; tx++) {
+			tiles[tx] = img.getTile(tx, ty);
+			if (tiles[tx] != null)
+				data[tx] = tiles[tx].lock(false);
+		}
+		// missing tiles are transparent
+		boolean clear = matches(0, target, tolerance);
+		try {
+			Rectangle r = img.getTileBounds(0, ty);
+			for (int y = r.y; y < r.y + r.height; y++) {
+				int start = -1;
+				for (int tx = 0; tx < tilesX; tx++) {
+					int x0 = tx << TiledImage.TILE_SHIFT;
+					if (tiles[tx] == null) {
+						if (clear && start < 0)
+							start = x0;
+						else if (!clear && start >= 0) {
+							b.add(y, start, x0);
+							start = -1;
+						}
+						continue;
+					}
+					int[] d = data[tx];
+					int w = tiles[tx].width;
+					int off = (y - r.y) * w;
+					for (int x = 0; x < w; x++) {
+						int p = d[off + x];
+						if (p == target || tolerance > 0
+								&& matches(p, target, tolerance)) {
+							if (start < 0)
+								start = x0 + x;
+						} else if (start >= 0) {
+							b.add(y, start, x0 + x);
+							start = -1;
+						}
+					}
+				}
+				if (start >= 0)
+					b.add(y, start, img.getWidth());
+			}
+		} finally {
+			for (int tx = 0; tx < tilesX; tx++)
+				if (tiles[tx] != null)
+					tiles[tx].unlock();
+		}
+		return b;
+	}
+
+	private int pixel(int x, int y) {
+		if (pixels != null)
+			return pixels[y * width + x];
+		int ty = y >> TiledImage.TILE_SHIFT, tx = x >> TiledImage.TILE_SHIFT;
+		if (ty != bandY) {
+			unlockBand();
+			if (bandTiles == null) {
+				bandTiles = new TiledImage.Tile[image.getTilesX()];
+				bandData = new int[bandTiles.length][];
+			}
+			for (int i = 0; i < bandTiles.length; i++)
+				bandTiles[i] = image.getTile(i, ty);
+			bandY = ty;
+		}
+		int[] d = bandData[tx];
+		if (d == null) {
+			// missing tiles are transparent
+			if (bandTiles[tx] == null)
+				return 0;
+			d = bandData[tx] = bandTiles[tx].lock(false);
+		}
+		return d[(y & (TiledImage.TILE_SIZE - 1)) * bandTiles[tx].width
+				+ (x & (TiledImage.TILE_SIZE - 1))];
+	}
+
+	private void unlockBand() {
+		if (bandData == null)
+			return;
+		for (int i = 0; i < bandData.length; i++)
+			if (bandData[i] != null) {
+				bandTiles[i].unlock();
+				bandData[i] = null;
+			}
+		bandY = -1;
+	}
+
+	private boolean fillable(int x, int y) {
+		int i = y * width + x;
+		return (visited[i >>> 6] & (1L << i)) == 0
+				&& matches(pixel(x, y), target, tolerance);
+	}
+
+	private void push(int x, int y) {
+		if (size + 2 > stack.length)
+			stack = Arrays.copyOf(stack, stack.length * 2);
+		stack[size++] = x;
+		stack[size++] = y;
+	}
+
+	private void fill(int x0, int y0, Mask.Builder b) {
+		push(x0, y0);
+		while (size > 0) {
+			int y = stack[--size], x = stack[--size];
+			if (!fillable(x, y))
+				continue;
+
+			int x1 = x, x2 = x + 1;
+			while (x1 > 0 && fillable(x1 - 1, y))
+				x1--;
+			while (x2 < width && fillable(x2, y))
+				x2++;
+			int row = y * width;
+			for (int i = row + x1; i < row + x2; i++)
+				visited[i >>> 6] |= 1L << i;
+			b.add(y, x1, x2);
+
+			if (y > 0)
+				scan(x1, x2, y - 1);
+			if (y < height - 1)
+				scan(x1, x2, y + 1);
+		}
+	}
+
+	/** Pushes the first pixel of each fillable run in [x1, x2) of row y. */
+	private void scan(int x1, int x2, int y) {
+		boolean inRun = false;
+		for (int x = x1; x < x2; x++) {
+			boolean f = fillable(x, y);
+			if (f && !inRun)
+				push(x, y);
+			inRun = f;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package org.pixie;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Counts the red, green and blue values of an image. Once counted, an image
+ * is recounted only where its tiles differ from the last one: the tiles it
+ * no longer shares are subtracted and the new ones added, so a change
+ * costs in proportion to the tiles it touched.
+ */
+public class Histogram {
+	/** red, then green, then blue bins */
+	private final int[] bins = new int[3 * 256];
+	/** the image the bins describe; a snapshot nobody writes to */
+	private TiledImage counted;
+	/** set to stop the update running and forget the image counted */
+	private volatile boolean canceled;
+
+	/**
+	 * Brings the bins up to date with img, which must not be written to.
+	 *
+	 * @return false if canceled, leaving the bins to the next update
+	 */
+	public boolean update(final TiledImage img) {
+		final TiledImage old = canceled ? null : counted;
+		canceled = false;
+		// if counting stops halfway, the next update starts over
+		counted = null;
+		// the tiles of another store may be gone
+		final boolean full = old == null || old.getStore() != img.getStore()
+				|| old.getWidth() != img.getWidth()
+				|| old.getHeight() != img.getHeight();
+		if (full)
+			Arrays.fill(bins, 0);
+		Parallel.forRange(0, img.getTilesY(), 1, new Parallel.Range() {
+			public void run(int from, int to) {
+				int[] delta = new int[bins.length];
+				boolean changed = false;
+				for (int ty = from; ty < to && !canceled; ty++)
+					for (int tx = 0; tx < img.getTilesX(); tx++) {
+						TiledImage.Tile t = img.getTile(tx, ty);
+						if (!full) {
+							TiledImage.Tile o = old.getTile(tx, ty);
+							if (o == t)
+								continue;
+							count(old, o, tx, ty, delta, -1);
+						}
+						count(img, t, tx, ty, delta, 1);
+						changed = true;
+					}
+				if (changed)
+					synchronized (bins) {
+						for (int i = 0; i < bins.length; i++)
+							bins[i] += delta[i];
+					}
+			}
+		});
+		if (canceled)
+			return false;
+		counted = img;
+		return true;
+	}
+
+	/**
+	 * Stops the update running, if any, and forgets the image counted, which
+	 * the next update then counts in full; called when the image is about
+	 * to be replaced.
+	 */
+	public void cancel() {
+		canceled = true;
+	}
+
+	private static void count(TiledImage img, TiledImage.Tile t, int tx,
+			int ty, int[] bins, int sign) {
+		if (t == null) {
+			// a missing tile is transparent black
+			Rectangle r = img.getTileBounds(tx, ty);
+			int n = r.width * r.height * sign;
+			bins[0] += n;
+			bins[256] += n;
+			bins[512] += n;
+			return;
+		}
+		int[] data = t.lock(false);
+		try {
+			for (int p : data) {
+				bins[(p >> 16) & 0xff] += sign;
+				bins[256 + ((p >> 8) & 0xff)] += sign;
+				bins[512 + (p & 0xff)] += sign;
+			}
+		} finally {
+			t.unlock();
+		}
+	}
+
+	/** @return a copy of the bins: red, then green, then blue */
+	public int[] getBins() {
+		synchronized (bins) {
+			return bins.clone();
+		}
+	}
+
+	/** @return the largest bin of any channel */
+	public static int getMax(int[] bins) {
+		int max = 0;
+		for (int b : bins)
+			max = Math.max(max, b);
+		return max;
+	}
+}
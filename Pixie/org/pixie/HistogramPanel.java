@@ -0,0 +1,188 @@
+package org.pixie;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+import javax.swing.JButton;
+import javax.swing.JComponent;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JToolBar;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * A dockable toolbar showing the histogram of the canvas while it is
+ * edited. Changes are gathered for up to DELAY, then a snapshot of the
+ * image goes to a background task, which only recounts the tiles that
+ * changed; changes made while it runs wait for it to finish. A snapshot
+ * makes the canvas copy each tile it writes to next, so one is taken per
+ * count rather than per change. Replacing the image stops the count and
+ * starts the next one over.
+ */
+public class HistogramPanel extends JToolBar implements ChangeListener {
+	private static final long serialVersionUID = 1L;
+	static final int GRAPH_HEIGHT = 100;
+	static final Color[] COLORS = { Color.RED, Color.GREEN, Color.BLUE };
+
+	private final Pixie pixie;
+	private final Histogram histogram = new Histogram();
+	/** the bins being shown, red, then green, then blue */
+	private int[] bins = new int[3 * 256];
+	private final JComponent graph;
+
+	/** the longest changes wait before they are counted, in ms */
+	static final int DELAY = 100;
+	private final Timer timer = new Timer(DELAY, new ActionListener() {
+		public void actionPerformed(ActionEvent e) {
+			if (!updating)
+				count();
+		}
+	});
+	// used on the event thread only: whether the image changed since the
+	// last snapshot, and whether a task is counting one
+	private boolean changed;
+	private boolean updating;
+
+	private final PropertyChangeListener replaced = new PropertyChangeListener() {
+		public void propertyChange(PropertyChangeEvent e) {
+			histogram.cancel();
+		}
+	};
+
+	public HistogramPanel(Pixie pixie) {
+		super("Histogram", JToolBar.VERTICAL);
+		this.pixie = pixie;
+		timer.setRepeats(false);
+
+		graph = new JComponent() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void paintComponent(Graphics g) {
+				paintGraph(g, bins);
+			}
+		};
+		graph.setPreferredSize(new Dimension(256, 3 * GRAPH_HEIGHT));
+
+		JButton save = new JButton("Save");
+		save.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				save();
+			}
+		});
+
+		JPanel p = new JPanel(new BorderLayout());
+		p.add(graph, BorderLayout.CENTER);
+		p.add(save, BorderLayout.SOUTH);
+		add(p);
+		super.setVisible(false);
+	}
+
+	/** Starts or stops following the canvas. */
+	@Override
+	public void setVisible(boolean visible) {
+		if (visible == isVisible())
+			return;
+		super.setVisible(visible);
+		if (visible) {
+			pixie.canvas.addChangeListener(this);
+			pixie.canvas.addPropertyChangeListener("image", replaced);
+			stateChanged(null);
+		} else {
+			pixie.canvas.removeChangeListener(this);
+			pixie.canvas.removePropertyChangeListener("image", replaced);
+			timer.stop();
+			changed = false;
+		}
+	}
+
+	public void stateChanged(ChangeEvent e) {
+		changed = true;
+		if (!updating && !timer.isRunning())
+			timer.start();
+	}
+
+	/** Hands a snapshot of the image to a background task counting it. */
+	private void count() {
+		changed = false;
+		updating = true;
+		final TiledImage img = pixie.canvas.getTiledImage().snapshot();
+		// held open until counted, in case the canvas moves on to another image
+		if (img.getStore() != null)
+			img.getStore().retain();
+		Parallel.POOL.execute(new Runnable() {
+			public void run() {
+				boolean counted = false;
+				try {
+					counted = histogram.update(img);
+				} finally {
+					release(img);
+					// a canceled count leaves the bins half done
+					final int[] b = counted ? histogram.getBins() : null;
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							if (b != null) {
+								bins = b;
+								graph.repaint();
+							}
+							updating = false;
+							if (changed && isVisible())
+								timer.start();
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/** Lets go of the store of a snapshot taken by count. */
+	private static void release(TiledImage img) {
+		if (img != null && img.getStore() != null)
+			img.getStore().dispose();
+	}
+
+	protected static void paintGraph(Graphics g, int[] bins) {
+		int max = Math.max(1, Histogram.getMax(bins));
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, 256, 3 * GRAPH_HEIGHT);
+		for (int k = 0; k < 3; k++) {
+			g.setColor(COLORS[k]);
+			int bottom = (k + 1) * GRAPH_HEIGHT;
+			for (int i = 0; i < 256; i++) {
+				int h = (int) ((long) bins[k * 256 + i] * GRAPH_HEIGHT / max);
+				if (h > 0)
+					g.drawLine(i, bottom - h, i, bottom - 1);
+			}
+		}
+	}
+
+	protected void save() {
+		BufferedImage output = new BufferedImage(256, 3 * GRAPH_HEIGHT,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics g = output.getGraphics();
+		paintGraph(g, bins);
+		g.dispose();
+		try {
+			File f = pixie.getFile(true);
+			if (f == null)
+				return;
+			ImageIO.write(output, "PNG", f);
+		} catch (IOException e) {
+			e.printStackTrace();
+			JOptionPane.showMessageDialog(null, "Could not save the histogram!");
+		}
+	}
+}
@@ -4,18 +4,54 @@ import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Point;
 import java.awt.Rectangle;
-import java.awt.image.BufferedImage;
-import java.util.ArrayDeque;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.Random;
 
 public interface ImageAction {
 	public void paint(Graphics g);
 
+	/**
+	 * An action too slow to redo on every redraw. It keeps what it computed
+	 * along with the version of the image it computed it from, and only
+	 * recalculates once it is replayed onto a different version.
+	 */
 	public static interface HeavyImageAction extends ImageAction {
-		public void recalculate(BufferedImage source);
+		public void recalculate(TiledImage source);
+	}
+
+	/**
+	 * An action computing a whole new image from the current one, which
+	 * Canvas hands over as tiles instead of painting it through a Graphics.
+	 */
+	public static interface FilterImageAction extends ImageAction {
+		public TiledImage filter(TiledImage source);
+	}
+
+	/**
+	 * An action that changes every pixel on its own through a PointOp, so it
+	 * can be applied in place, one tile at a time.
+	 */
+	public static interface PointImageAction extends ImageAction {
+		public PointOp getPointOp();
+	}
+
+	/**
+	 * An action that only touches the pixels inside its bounds, so it can be
+	 * composited onto the existing cache without a full redraw.
+	 */
+	public static interface BoundedImageAction extends ImageAction {
+		public Rectangle getBounds();
+	}
+
+	/**
+	 * An action painting one color over a mask; Canvas writes opaque colors
+	 * straight into the tiles instead of filling each run through a
+	 * Graphics.
+	 */
+	public static interface MaskImageAction extends BoundedImageAction {
+		public Mask getMask();
+
+		public Color getColor();
 	}
 
 	public static class Resize implements ImageAction {
@@ -27,7 +63,7 @@ public interface ImageAction {
 		}
 	}
 
-	public static class RectangleAction implements ImageAction {
+	public static class RectangleAction implements BoundedImageAction {
 		public Color out, in;
 		public Point p1, p2;
 
@@ -48,9 +84,17 @@ public interface ImageAction {
 				g.fillRect(r.x + 1, r.y + 1, r.width - 1, r.height - 1);
 			}
 		}
+
+		public Rectangle getBounds() {
+			Rectangle r = new Rectangle(p1);
+			r.add(p2);
+			r.width++;
+			r.height++;
+			return r;
+		}
 	}
 
-	public static class LineAction implements ImageAction {
+	public static class LineAction implements BoundedImageAction {
 		public Color c;
 		public Point p1, p2;
 
@@ -64,304 +108,246 @@ public interface ImageAction {
 			g.setColor(c);
 			g.drawLine(p1.x, p1.y, p2.x, p2.y);
 		}
+
+		public Rectangle getBounds() {
+			Rectangle r = new Rectangle(p1);
+			r.add(p2);
+			r.width++;
+			r.height++;
+			return r;
+		}
 	}
 	
-	public static class SprayAction implements ImageAction {
-		static final int MAX_FREE_POINTS = 64;
-
+	/**
+	 * An airbrush stroke: dabs of random dots within a radius, laid along
+	 * the path at most half a radius apart. The dots come from a seeded
+	 * Random, so the same points, settings and seed always spray the same
+	 * pixels.
+	 */
+	public static class SprayAction implements BoundedImageAction {
 		public Color c;
-		LinkedList<Point> pts = new LinkedList<Point>();
-		BufferedImage cache;
-		int cacheX, cacheY;
-		int minX = Integer.MAX_VALUE, minY = minX, maxX = 0, maxY = 0;
+		public final int radius, density;
+		public final long seed;
+		int[] pts = new int[64];
+		int size;
+		final Random random;
+		final StrokeRaster raster;
 
 		public SprayAction(Color c) {
-			this.c = c;
+			this(c, 10, 20, new Random().nextLong());
 		}
 
-		protected void toCache() {
-			int newMinX = minX;
-			int newMinY = minY;
-			int w = maxX - minX + 1;
-			int h = maxY - minY + 1;
-			if (cache != null) {
-				newMinX = Math.min(minX, cacheX);
-				newMinY = Math.min(minY, cacheY);
-				int newMaxX = Math.max(maxX, cache.getWidth() + cacheX);
-				int newMaxY = Math.max(maxY, cache.getHeight() + cacheY);
+		/**
+		 * @param density
+		 *            the number of dots in each dab
+		 */
+		public SprayAction(Color c, int radius, int density, long seed) {
+			this.c = c;
+			this.radius = radius;
+			this.density = density;
+			this.seed = seed;
+			random = new Random(seed);
+			raster = new StrokeRaster(c.getRGB());
+		}
 
-				w = newMaxX - newMinX + 1;
-				h = newMaxY - newMinY + 1;
-			}
+		public void add(Point p) {
+			add(p.x, p.y);
+		}
 
-			BufferedImage newCache = new BufferedImage(w, h,
-					BufferedImage.TYPE_INT_ARGB);
-			Graphics g = newCache.createGraphics();
-			if (cache != null)
-				g.drawImage(cache, cacheX - newMinX, cacheY - newMinY, null);
-			g.setColor(c);
-			LinkedList<Point> spraypts = new LinkedList<Point>();
-			for (Point p : pts)
-			{
-				spraypts.add(new Point(p.x+3,p.y+3));
-				spraypts.add(new Point(p.x-6,p.y+7));
-				spraypts.add(new Point(p.x+10,p.y-5));
-				spraypts.add(new Point(p.x-3,p.y+44));
+		public void add(int x, int y) {
+			if (size == pts.length)
+				pts = Arrays.copyOf(pts, size * 2);
+			pts[size++] = x;
+			pts[size++] = y;
+			if (size == 2) {
+				dab(x, y);
+				return;
 			}
-			Point prevPoint = pts.getFirst();
+			int x0 = pts[size - 4], y0 = pts[size - 3];
+			double len = Math.hypot(x - x0, y - y0);
+			int steps = (int) Math.ceil(len / Math.max(1, radius / 2));
+			for (int i = 1; i <= steps; i++)
+				dab(x0 + (int) Math.round((x - x0) * (double) i / steps), y0
+						+ (int) Math.round((y - y0) * (double) i / steps));
+		}
 
-			pts.addAll(spraypts);
-			for (Point p : pts) {
-				g.drawLine(prevPoint.x - newMinX, prevPoint.y - newMinY, p.x
-						- newMinX, p.y - newMinY);
-				prevPoint = p;
+		protected void dab(int x, int y) {
+			int r2 = radius * radius, d = 2 * radius + 1;
+			for (int i = 0; i < density; i++) {
+				int dx, dy;
+				do {
+					dx = random.nextInt(d) - radius;
+					dy = random.nextInt(d) - radius;
+				} while (dx * dx + dy * dy > r2);
+				raster.plot(x + dx, y + dy);
 			}
+		}
 
-			// reset our vars
-			cache = newCache;
-			cacheX = newMinX;
-			cacheY = newMinY;
-			Point p = pts.getLast();
-			pts.clear();
-			pts.add(p);
-			minX = p.x;
-			minY = p.y;
-			maxX = p.x;
-			maxY = p.y;
+		public boolean isEmpty() {
+			return size == 0;
 		}
 
-		public void add(Point p) {
-			if (pts.add(p)) {
-				if (p.x < minX)
-					minX = p.x;
-				if (p.y < minY)
-					minY = p.y;
-				if (p.x > maxX)
-					maxX = p.x;
-				if (p.y > maxY)
-					maxY = p.y;
-				if (pts.size() > MAX_FREE_POINTS)
-					toCache();
-			}
+		/** @return the last point added, or null */
+		public Point getLast() {
+			return size == 0 ? null : new Point(pts[size - 2], pts[size - 1]);
 		}
 
 		public void paint(Graphics g) {
-			if (cache != null)
-				g.drawImage(cache, cacheX, cacheY, null);
-			g.setColor(c);
-			Point prevPoint = pts.getFirst();
-			for (Point p : pts) {
-				g.drawLine(prevPoint.x, prevPoint.y, p.x, p.y);
-				prevPoint = p;
-			}
+			raster.paint(g);
 		}
-	}
 
-	public static class PointAction implements ImageAction {
-		static final int MAX_FREE_POINTS = 64;
+		public Rectangle getBounds() {
+			return raster.getBounds();
+		}
+	}
 
+	/**
+	 * A freehand stroke. The points are kept as x, y pairs in an int[], and
+	 * each segment is plotted into a StrokeRaster as soon as it is added.
+	 */
+	public static class PointAction implements BoundedImageAction {
 		public Color c;
-		LinkedList<Point> pts = new LinkedList<Point>();
-		BufferedImage cache;
-		int cacheX, cacheY;
-		int minX = Integer.MAX_VALUE, minY = minX, maxX = 0, maxY = 0;
+		int[] pts = new int[64];
+		int size;
+		final StrokeRaster raster;
 
 		public PointAction(Color c) {
 			this.c = c;
+			raster = new StrokeRaster(c.getRGB());
 		}
 
-		protected void toCache() {
-			int newMinX = minX;
-			int newMinY = minY;
-			int w = maxX - minX + 1;
-			int h = maxY - minY + 1;
-			if (cache != null) {
-				newMinX = Math.min(minX, cacheX);
-				newMinY = Math.min(minY, cacheY);
-				int newMaxX = Math.max(maxX, cache.getWidth() + cacheX);
-				int newMaxY = Math.max(maxY, cache.getHeight() + cacheY);
-
-				w = newMaxX - newMinX + 1;
-				h = newMaxY - newMinY + 1;
-			}
+		public void add(Point p) {
+			add(p.x, p.y);
+		}
 
-			BufferedImage newCache = new BufferedImage(w, h,
-					BufferedImage.TYPE_INT_ARGB);
-			Graphics g = newCache.createGraphics();
-			if (cache != null)
-				g.drawImage(cache, cacheX - newMinX, cacheY - newMinY, null);
-			g.setColor(c);
-			Point prevPoint = pts.getFirst();
-			for (Point p : pts) {
-				g.drawLine(prevPoint.x - newMinX, prevPoint.y - newMinY, p.x
-						- newMinX, p.y - newMinY);
-				prevPoint = p;
-			}
+		public void add(int x, int y) {
+			if (size == pts.length)
+				pts = Arrays.copyOf(pts, size * 2);
+			pts[size++] = x;
+			pts[size++] = y;
+			if (size == 2)
+				raster.plot(x, y);
+			else
+				raster.line(pts[size - 4], pts[size - 3], x, y);
+		}
 
-			// reset our vars
-			cache = newCache;
-			cacheX = newMinX;
-			cacheY = newMinY;
-			Point p = pts.getLast();
-			pts.clear();
-			pts.add(p);
-			minX = p.x;
-			minY = p.y;
-			maxX = p.x;
-			maxY = p.y;
+		public boolean isEmpty() {
+			return size == 0;
 		}
 
-		public void add(Point p) {
-			if (pts.add(p)) {
-				if (p.x < minX)
-					minX = p.x;
-				if (p.y < minY)
-					minY = p.y;
-				if (p.x > maxX)
-					maxX = p.x;
-				if (p.y > maxY)
-					maxY = p.y;
-				if (pts.size() > MAX_FREE_POINTS)
-					toCache();
-			}
+		/** @return the last point added, or null */
+		public Point getLast() {
+			return size == 0 ? null : new Point(pts[size - 2], pts[size - 1]);
 		}
 
 		public void paint(Graphics g) {
-			if (cache != null)
-				g.drawImage(cache, cacheX, cacheY, null);
-			g.setColor(c);
-			Point prevPoint = pts.getFirst();
-			for (Point p : pts) {
-				g.drawLine(prevPoint.x, prevPoint.y, p.x, p.y);
-				prevPoint = p;
-			}
+			raster.paint(g);
+		}
+
+		public Rectangle getBounds() {
+			return raster.getBounds();
 		}
 	}
 
-	public static class FillAction implements HeavyImageAction {
-		Point origin;
-		int threshold;
+	/**
+	 * Paints a color over the pixels of a mask. Only the runs of the mask
+	 * are kept, so the action costs in proportion to the outline of the
+	 * region and not to the image it was found in.
+	 */
+	public static abstract class MaskAction implements MaskImageAction {
 		Color c;
-		BufferedImage source, myCache;
-		FloodFill floodFill;
+		Mask mask;
 
-		public FillAction(BufferedImage source, Point origin, Color c,
-				int threshold) {
-			this.source = source;
-			this.origin = origin;
+		public MaskAction(Color c) {
 			this.c = c;
-			this.threshold = threshold;
 		}
 
-		protected BufferedImage getCache() {
-			if (floodFill != null)
-				return myCache;
-			floodFill = new FloodFill(source, origin, threshold);
+		public Mask getMask() {
+			return mask;
+		}
 
-			int w = floodFill.maxX - floodFill.minX + 1;
-			int h = floodFill.maxY - floodFill.minY + 1;
+		public Color getColor() {
+			return c;
+		}
 
-			int rgb = c.getRGB();
-			myCache = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-			for (Point p : floodFill.set)
-				myCache.setRGB(p.x - floodFill.minX, p.y - floodFill.minY, rgb);
-			return myCache;
+		public void paint(Graphics g) {
+			g.setColor(c);
+			mask.paint(g);
 		}
 
-		public void recalculate(BufferedImage source) {
-			floodFill = null;
-			this.source = source;
+		public Rectangle getBounds() {
+			return mask.getBounds();
 		}
+	}
 
-		public void paint(Graphics g) {
-			g.drawImage(getCache(), floodFill.minX, floodFill.minY, null);
+	/** Fills the region connected to a point. */
+	public static class FillAction extends MaskAction implements
+			HeavyImageAction {
+		Point origin;
+		int tolerance;
+
+		public FillAction(TiledImage source, Point origin, Color c,
+				int tolerance) {
+			super(c);
+			this.origin = origin;
+			this.tolerance = tolerance;
+			recalculate(source);
+		}
+
+		/** A fill whose mask was already found, as a project file keeps it. */
+		FillAction(Point origin, Color c, int tolerance, Mask mask) {
+			super(c);
+			this.origin = origin;
+			this.tolerance = tolerance;
+			this.mask = mask;
+		}
+
+		public void recalculate(TiledImage source) {
+			mask = new FloodFill(source, origin.x, origin.y, tolerance)
+					.getMask();
 		}
 	}
 
-	class FloodFill {
-		// input
-		BufferedImage source;
-		int targetRGB;
-		int threshold;
-
-		// output
-		public Set<Point> set = new HashSet<Point>();
-		public int minX = Integer.MAX_VALUE, minY = minX, maxX = 0, maxY = 0;
-
-		FloodFill(BufferedImage source, Point p, int threshold) {
-			this.source = source;
-			this.threshold = threshold;
-			if (p.x < 0 || p.y < 0 || p.x >= source.getWidth()
-					|| p.y >= source.getHeight())
-				return;
-			targetRGB = source.getRGB(p.x, p.y);
-			floodFill(p);
+	/** Recolors every pixel of the image matching a color. */
+	public static class ReplaceColorAction extends MaskAction implements
+			HeavyImageAction {
+		int target, tolerance;
+
+		public ReplaceColorAction(TiledImage source, int target, Color c,
+				int tolerance) {
+			super(c);
+			this.target = target;
+			this.tolerance = tolerance;
+			recalculate(source);
 		}
 
-		protected void floodFill(Point start) {
-			Queue<Point> q = new ArrayDeque<Point>();
-			if (!needsFill(start))
-				return;
-			q.add(start);
-			while (!q.isEmpty()) {
-				Point n = q.remove();
-				if (!needsFill(n))
-					continue;
-				Point w = new Point(n), e = new Point(n);
-				do
-					w.x--;
-				while (needsFill(w));
-				do
-					e.x++;
-				while (needsFill(e));
-
-				w.x++;
-				if (w.x < minX)
-					minX = w.x;
-				if (e.x - 1 > maxX)
-					maxX = e.x - 1;
-				if (n.y < minY)
-					minY = n.y;
-				if (n.y > maxY)
-					maxY = n.y;
-
-				for (int x = w.x; x < e.x; x++) {
-					set.add(new Point(x, n.y));
-					if (needsFill(new Point(x, n.y - 1)))
-						q.add(new Point(x, n.y - 1));
-					if (needsFill(new Point(x, n.y + 1)))
-						q.add(new Point(x, n.y + 1));
-				}
-			}
+		ReplaceColorAction(int target, Color c, int tolerance, Mask mask) {
+			super(c);
+			this.target = target;
+			this.tolerance = tolerance;
+			this.mask = mask;
 		}
 
-		protected boolean needsFill(Point p) {
-			if (p.x < 0 || p.y < 0 || p.x >= source.getWidth()
-					|| p.y >= source.getHeight())
-				return false;
-			if (set.contains(p))
-				return false;
-			return source.getRGB(p.x, p.y) == targetRGB;
+		public void recalculate(TiledImage source) {
+			mask = FloodFill.matching(source, target, tolerance);
 		}
 	}
 	
-	public static class CropAction implements ImageAction
+	public static class CropAction implements BoundedImageAction
 	{
 	public Color out, in;
 	public Point p1, p2;
 	public boolean crop;
-	public BufferedImage bi;
 	public int x, y, h, w;
 	public Canvas canvas;
 	
-	public CropAction(Point p, Color out, Color in, BufferedImage bi, Canvas c, boolean crop)
+	public CropAction(Point p, Color out, Color in, Canvas c, boolean crop)
 		{
 		this.out = out;
 		this.in = in;
 		p1 = p;
 		canvas = c;
 		p2 = p;
-		this.bi = bi;
 		x = y = w = h = 0;
 		this.crop = crop;
 		}
@@ -375,9 +361,17 @@ public interface ImageAction {
 				g.drawRect(r.x,r.y,r.width,r.height);
 		}
 		else {
-			BufferedImage cropped = bi.getSubimage(x,y,w,h);
-			canvas.setImage(cropped);
+			canvas.setImage(canvas.getTiledImage().crop(new Rectangle(x,y,w,h)));
+		}
 		}
+	
+	public Rectangle getBounds()
+		{
+		Rectangle r = new Rectangle(p1);
+		r.add(p2);
+		r.width++;
+		r.height++;
+		return r;
 		}
 	}
 }
@@ -0,0 +1,143 @@
+package org.pixie;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+
+/**
+ * Opens an image without blocking the editor. The canvas takes the size of
+ * the image as soon as it is known and fills in a band of tiles at a time
+ * as they are decoded. For a large image, a second reader meanwhile decodes
+ * a copy subsampled to about PREVIEW_PIXELS, or takes the thumbnail the
+ * file carries, which is shown stretched under the tiles not loaded yet.
+ * PNG files get no such preview, as subsampling does not make them decode
+ * any faster.
+ * Editing stays disabled until the full image is in.
+ */
+public class ImageLoader extends SwingWorker<TiledImage, TiledImage> implements
+		TiledImage.ReadListener {
+	static final int PREVIEW_PIXELS = 1 << 20;
+	/** images up to this many pixels load too fast to need a preview */
+	static final long SMALL_PIXELS = 4L * PREVIEW_PIXELS;
+
+	private final Pixie pixie;
+	private final File file;
+	/** the reader of the preview, aborted once it is no longer needed */
+	private volatile ImageReader previewReader;
+	private boolean shown;
+
+	public ImageLoader(Pixie pixie, File file) {
+		this.pixie = pixie;
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	protected TiledImage doInBackground() throws IOException {
+		return TiledImage.read(file, this);
+	}
+
+	public void rowsRead(TiledImage img, int y) {
+		if (isCancelled())
+			throw new CancellationException();
+		if (y == 0 && (long) img.getWidth() * img.getHeight() > SMALL_PIXELS)
+			startPreview(img.getWidth(), img.getHeight());
+		publish(img.snapshot());
+	}
+
+	private void startPreview(final int width, final int height) {
+		// not on Parallel.POOL, whose threads must not wait on I/O
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					final BufferedImage img = readPreview(width, height);
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							if (img != null && !isDone())
+								pixie.canvas.setPlaceholder(img);
+						}
+					});
+				} catch (IOException e) {
+					// the full image still loads
+					e.printStackTrace();
+				}
+			}
+		}, "Pixie preview");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** @return the preview, or null if loading finished first */
+	protected BufferedImage readPreview(int width, int height)
+			throws IOException {
+		ImageReader reader = TiledImage.openReader(file);
+		previewReader = reader;
+		try {
+			if (isDone())
+				return null;
+			int s = (int) Math.ceil(Math.sqrt((double) width * height
+					/ PREVIEW_PIXELS));
+			if (reader.readerSupportsThumbnails()
+					&& reader.getNumThumbnails(0) > 0
+					&& reader.getThumbnailWidth(0, 0) >= width / s / 4)
+				return reader.readThumbnail(0, 0);
+			// the PNG reader inflates every row however much it subsamples,
+			// so its preview would come no sooner than the bands
+			if (reader.getFormatName().equalsIgnoreCase("png"))
+				return null;
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceSubsampling(s, s, 0, 0);
+			BufferedImage img = reader.read(0, param);
+			// an aborted read returns what it had decoded
+			return isDone() ? null : img;
+		} finally {
+			previewReader = null;
+			TiledImage.closeReader(reader);
+		}
+	}
+
+	@Override
+	protected void process(List<TiledImage> chunks) {
+		if (isCancelled())
+			return;
+		if (!shown) {
+			pixie.startLoading(this);
+			shown = true;
+		}
+		pixie.canvas.setImage(chunks.get(chunks.size() - 1));
+	}
+
+	@Override
+	protected void done() {
+		ImageReader r = previewReader;
+		if (r != null)
+			r.abort();
+		if (isCancelled())
+			return;
+		pixie.canvas.setPlaceholder(null);
+		try {
+			pixie.canvas.setImage(get());
+			pixie.finishLoading(this, file);
+		} catch (InterruptedException e) {
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			JOptionPane.showMessageDialog(null, "Cannot load file \""
+					+ file.getPath() + "\"", "Error",
+					JOptionPane.ERROR_MESSAGE);
+			// keep what was read, if anything, but as a new image
+			pixie.finishLoading(this, shown ? null : pixie.file);
+		}
+	}
+}
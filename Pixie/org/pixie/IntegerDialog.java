@@ -16,14 +16,44 @@ import javax.swing.JLabel;
 import javax.swing.JSlider;
 import javax.swing.JSpinner;
 import javax.swing.SpinnerNumberModel;
+import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 public class IntegerDialog {
+	/** how long the value must rest before it is previewed, in ms */
+	static final int PREVIEW_DELAY = 150;
+
+	/** Shows what a value would do while the dialog is open. */
+	public interface Preview {
+		/** Called on the event thread once the value stopped changing. */
+		void show(int value);
+
+		/** Called when the dialog closes, however it was closed. */
+		void clear();
+	}
+
 	public static Integer getInteger(String text, int min, int max, int def,
 			int tickSpacing) {
+		return getInteger(text, min, max, def, tickSpacing, null);
+	}
+
+	/**
+	 * @param preview
+	 *            shown each value the slider rests on, or null
+	 */
+	public static Integer getInteger(String text, int min, int max, int def,
+			int tickSpacing, final Preview preview) {
 		final Integer[] values = new Integer[1];
 		values[0] = def;
+		// restarted by every change, so dragging only previews where it stops
+		final Timer debounce = new Timer(PREVIEW_DELAY, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				if (values[0] != null)
+					preview.show(values[0]);
+			}
+		});
+		debounce.setRepeats(false);
 
 		final JDialog d = new JDialog((JFrame) null, "Input");
 		d.setModal(true);
@@ -56,6 +86,8 @@ public class IntegerDialog {
 				int val = slider.getValue();
 				spinner.setValue(val);
 				values[0] = val;
+				if (preview != null)
+					debounce.restart();
 			}
 		});
 
@@ -64,6 +96,8 @@ public class IntegerDialog {
 				int val = (Integer) spinner.getValue();
 				slider.setValue(val);
 				values[0] = val;
+				if (preview != null)
+					debounce.restart();
 			}
 		});
 
@@ -97,8 +131,13 @@ public class IntegerDialog {
 		Dimension res = Toolkit.getDefaultToolkit().getScreenSize();
 		d.setLocation(res.width / 2 - d.getWidth() / 2,
 				res.height / 2 - d.getHeight() / 2);
+		if (preview != null)
+			debounce.start();
 		d.setVisible(true);
 
+		debounce.stop();
+		if (preview != null)
+			preview.clear();
 		return values[0];
 	}
 }
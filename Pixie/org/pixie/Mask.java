@@ -0,0 +1,192 @@
+package org.pixie;
+
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A set of pixels stored as runs: for each row, the sorted, disjoint
+ * [x1, x2) spans it covers. A mask costs in proportion to the outline of
+ * the region rather than to its area.
+ */
+public class Mask {
+	private final int minX, minY, maxX, maxY;
+	/** the runs of row minY + i are runs[rows[i]] to runs[rows[i + 1]] */
+	private final int[] rows;
+	/** x1, x2 pairs */
+	private final int[] runs;
+
+	private Mask(int minX, int minY, int maxX, int maxY, int[] rows,
+			int[] runs) {
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		this.rows = rows;
+		this.runs = runs;
+	}
+
+	public boolean isEmpty() {
+		return runs.length == 0;
+	}
+
+	/** @return the smallest rectangle holding the mask */
+	public Rectangle getBounds() {
+		if (isEmpty())
+			return new Rectangle();
+		return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+	}
+
+	/** @return the number of pixels in the mask */
+	public long getArea() {
+		long area = 0;
+		for (int i = 0; i < runs.length; i += 2)
+			area += runs[i + 1] - runs[i];
+		return area;
+	}
+
+	/** @return whether any pixel of the mask lies inside r */
+	public boolean intersects(Rectangle r) {
+		int y1 = Math.max(minY, r.y), y2 = Math.min(maxY + 1, r.y + r.height);
+		for (int y = y1; y < y2; y++)
+			for (int i = rows[y - minY]; i < rows[y - minY + 1]; i += 2)
+				if (runs[i] < r.x + r.width && runs[i + 1] > r.x)
+					return true;
+		return false;
+	}
+
+	public boolean contains(int x, int y) {
+		if (y < minY || y > maxY)
+			return false;
+		for (int i = rows[y - minY]; i < rows[y - minY + 1]; i += 2)
+			if (x >= runs[i] && x < runs[i + 1])
+				return true;
+		return false;
+	}
+
+	/**
+	 * Sets the pixels of the mask to rgb in an image of the given scanline
+	 * width whose top left pixel is (x0, y0), within its height.
+	 */
+	public void fill(int[] data, int width, int height, int x0, int y0,
+			int rgb) {
+		int y1 = Math.max(minY, y0), y2 = Math.min(maxY + 1, y0 + height);
+		for (int y = y1; y < y2; y++) {
+			int off = (y - y0) * width - x0;
+			for (int i = rows[y - minY]; i < rows[y - minY + 1]; i += 2) {
+				int x1 = Math.max(runs[i], x0);
+				int x2 = Math.min(runs[i + 1], x0 + width);
+				if (x1 < x2)
+					Arrays.fill(data, off + x1, off + x2, rgb);
+			}
+		}
+	}
+
+	/** Fills the runs inside the clip of g with its current color. */
+	public void paint(Graphics g) {
+		Rectangle clip = g.getClipBounds();
+		int y1 = minY, y2 = maxY + 1, cx1 = Integer.MIN_VALUE, cx2 = Integer.MAX_VALUE;
+		if (clip != null) {
+			y1 = Math.max(y1, clip.y);
+			y2 = Math.min(y2, clip.y + clip.height);
+			cx1 = clip.x;
+			cx2 = clip.x + clip.width;
+		}
+		for (int y = y1; y < y2; y++)
+			for (int i = rows[y - minY]; i < rows[y - minY + 1]; i += 2) {
+				int x1 = Math.max(runs[i], cx1), x2 = Math.min(runs[i + 1], cx2);
+				if (x1 < x2)
+					g.fillRect(x1, y, x2 - x1, 1);
+			}
+	}
+
+	/** Writes the runs, to be read back by read(). */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(minX);
+		out.writeInt(minY);
+		out.writeInt(maxX);
+		out.writeInt(maxY);
+		out.writeInt(runs.length);
+		for (int i = 0; i < rows.length; i++)
+			out.writeInt(rows[i]);
+		for (int i = 0; i < runs.length; i++)
+			out.writeInt(runs[i]);
+	}
+
+	public static Mask read(DataInput in) throws IOException {
+		int minX = in.readInt(), minY = in.readInt();
+		int maxX = in.readInt(), maxY = in.readInt();
+		int[] runs = new int[in.readInt()];
+		int[] rows = new int[runs.length == 0 ? 1 : maxY - minY + 2];
+		for (int i = 0; i < rows.length; i++)
+			rows[i] = in.readInt();
+		for (int i = 0; i < runs.length; i++)
+			runs[i] = in.readInt();
+		return new Mask(minX, minY, maxX, maxY, rows, runs);
+	}
+
+	/** Collects runs in any order and sorts them into a Mask. */
+	public static class Builder {
+		private int[] spans = new int[96];
+		private int size;
+
+		/** Adds the pixels x1 to x2 - 1 of row y, which must be new. */
+		public void add(int y, int x1, int x2) {
+			if (size + 3 > spans.length)
+				spans = Arrays.copyOf(spans, spans.length * 2);
+			spans[size++] = y;
+			spans[size++] = x1;
+			spans[size++] = x2;
+		}
+
+		/** Adds all the runs of another builder. */
+		public void add(Builder b) {
+			if (size + b.size > spans.length)
+				spans = Arrays.copyOf(spans, Math.max(spans.length * 2, size
+						+ b.size));
+			System.arraycopy(b.spans, 0, spans, size, b.size);
+			size += b.size;
+		}
+
+		public Mask build() {
+			if (size == 0)
+				return new Mask(0, 0, -1, -1, new int[1], new int[0]);
+			int minX = Integer.MAX_VALUE, minY = minX;
+			int maxX = Integer.MIN_VALUE, maxY = maxX;
+			for (int i = 0; i < size; i += 3) {
+				minY = Math.min(minY, spans[i]);
+				maxY = Math.max(maxY, spans[i]);
+				minX = Math.min(minX, spans[i + 1]);
+				maxX = Math.max(maxX, spans[i + 2] - 1);
+			}
+
+			// counting sort by row, then by x within each row
+			int[] rows = new int[maxY - minY + 2];
+			for (int i = 0; i < size; i += 3)
+				rows[spans[i] - minY + 1] += 2;
+			for (int i = 1; i < rows.length; i++)
+				rows[i] += rows[i - 1];
+			int[] next = Arrays.copyOf(rows, rows.length - 1);
+			int[] runs = new int[size / 3 * 2];
+			for (int i = 0; i < size; i += 3) {
+				int r = next[spans[i] - minY];
+				runs[r] = spans[i + 1];
+				runs[r + 1] = spans[i + 2];
+				next[spans[i] - minY] += 2;
+			}
+			for (int y = 0; y < rows.length - 1; y++)
+				for (int i = rows[y] + 2; i < rows[y + 1]; i += 2)
+					for (int j = i; j > rows[y] && runs[j - 2] > runs[j]; j -= 2) {
+						int x1 = runs[j], x2 = runs[j + 1];
+						runs[j] = runs[j - 2];
+						runs[j + 1] = runs[j - 1];
+						runs[j - 2] = x1;
+						runs[j - 1] = x2;
+					}
+			return new Mask(minX, minY, maxX, maxY, rows, runs);
+		}
+	}
+}
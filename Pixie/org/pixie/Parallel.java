@@ -0,0 +1,60 @@
+package org.pixie;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits work over ranges of rows or tiles on a shared ForkJoinPool.
+ */
+public class Parallel {
+	public static final ForkJoinPool POOL = new ForkJoinPool();
+
+	public static interface Range {
+		/** Processes the items in [from, to). */
+		public void run(int from, int to);
+	}
+
+	/**
+	 * Runs range over [from, to) in chunks of at most grain items, and
+	 * returns once all of them are done.
+	 */
+	public static void forRange(int from, int to, int grain, Range range) {
+		if (from >= to)
+			return;
+		RangeTask task = new RangeTask(from, to, Math.max(1, grain), range);
+		if (ForkJoinTask.inForkJoinPool())
+			task.invoke();
+		else
+			POOL.invoke(task);
+	}
+
+	/** @return a grain splitting n items in a few chunks per worker */
+	public static int grain(int n) {
+		return Math.max(1, n / (POOL.getParallelism() * 4));
+	}
+
+	static class RangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final int from, to, grain;
+		final Range range;
+
+		RangeTask(int from, int to, int grain, Range range) {
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+			this.range = range;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				range.run(from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new RangeTask(from, mid, grain, range), new RangeTask(
+					mid, to, grain, range));
+		}
+	}
+}
@@ -17,6 +17,7 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.zip.Deflater;
 
 import javax.imageio.ImageIO;
 import javax.swing.AbstractButton;
@@ -49,6 +50,20 @@ public class Pixie implements ActionListener {
 	private final JPanel toolPanel;
 	public final String TITLE = "Pixie ";
 	public EffectsMenu effectsMenu;
+	public HistogramPanel histogramPanel;
+	/** the image being opened, while editing waits for it */
+	private ImageLoader loader;
+	/** the save running, and whether to exit once it succeeds */
+	private SaveTask saver;
+	private boolean exitWhenSaved;
+	/** what exit was told while waiting on the save */
+	private boolean exitUnsaved;
+	/** the project file is a .pixie one, which later saves append to */
+	private Project project;
+	/** the recovery journal of the canvas */
+	private final Autosave autosave;
+	/** the deflate level PNGs are saved with */
+	private int compression = Deflater.BEST_SPEED;
 
 	public Pixie(BufferedImage image) {
 		if (image == null)
@@ -65,6 +80,7 @@ public class Pixie implements ActionListener {
 		scroll.getHorizontalScrollBar().setUnitIncrement(10);
 		p.add(scroll, BorderLayout.CENTER);
 		p.add(pal, BorderLayout.SOUTH);
+		p.add(histogramPanel = new HistogramPanel(this), BorderLayout.EAST);
 
 		frame = new JFrame();
 		frame.setJMenuBar(makeMenuBar());
@@ -80,13 +96,21 @@ public class Pixie implements ActionListener {
 				doClose();
 			}
 		});
+		autosave = new Autosave(this);
+		autosave.start();
 	}
 
 	public void updateTitle() {
-		if (file == null)
-			frame.setTitle(TITLE + "<untitled>");
+		String title;
+		if (loader != null)
+			title = TITLE + loader.getFile().getName() + " (loading)";
+		else if (file == null)
+			title = TITLE + "<untitled>";
 		else
-			frame.setTitle(TITLE + file.getName());
+			title = TITLE + file.getName();
+		if (saver != null)
+			title += " (saving " + saver.getFile().getName() + ")";
+		frame.setTitle(title);
 	}
 
 	public JMenuBar makeMenuBar() {
@@ -97,6 +121,7 @@ public class Pixie implements ActionListener {
 		addMenuItem(fm, "Open", getIcon("open"));
 		addMenuItem(fm, "Save", getIcon("save"));
 		addMenuItem(fm, "Save As", getIcon("save-as"));
+		addMenuItem(fm, "Compression", null);
 		addMenuItem(fm, "Exit", getIcon("cancel"));
 		effectsMenu=new EffectsMenu(this);
 		//setEffectsMenu();
@@ -144,6 +169,10 @@ public class Pixie implements ActionListener {
 		return toolBar;
 	}
 
+	public JToolBar getToolBar() {
+		return toolBar;
+	}
+
 	public <K extends AbstractButton> K addButton(Container c, K b) {
 		c.add(b);
 		b.addActionListener(this);
@@ -185,25 +214,25 @@ public class Pixie implements ActionListener {
 
 		@Override
 		public void mousePressed(MouseEvent e) {
-			if (tool != null)
+			if (tool != null && canvas.isEnabled())
 				tool.mousePress(refactor(e), canvas, pal);
 		}
 
 		@Override
 		public void mouseReleased(MouseEvent e) {
-			if (tool != null)
+			if (tool != null && canvas.isEnabled())
 				tool.mouseRelease(refactor(e), canvas, pal);
 		}
 
 		@Override
 		public void mouseDragged(MouseEvent e) {
-			if (tool != null)
+			if (tool != null && canvas.isEnabled())
 				tool.mouseMove(refactor(e), canvas, pal, true);
 		}
 
 		@Override
 		public void mouseMoved(MouseEvent e) {
-			if (tool != null)
+			if (tool != null && canvas.isEnabled())
 				tool.mouseMove(refactor(e), canvas, pal, false);
 		}
 
@@ -243,10 +272,7 @@ public class Pixie implements ActionListener {
 
 	public void actionPerformed(ActionEvent e) {
 		if (e.getSource() == bUndo) {
-			if (!canvas.acts.isEmpty()) {
-				canvas.acts.removeLast();
-				canvas.redrawCache();
-			}
+			canvas.undo();
 			return;
 		}
 		if (e.getSource() == bRotate90Right) {
@@ -297,6 +323,14 @@ public class Pixie implements ActionListener {
 			doSave(true);
 			return;
 		}
+		if (act.equals("Compression")) {
+			Integer c = IntegerDialog.getInteger(
+					"PNG compression (0 fastest, 9 smallest):", 0, 9,
+					compression, 1);
+			if (c != null)
+				compression = c;
+			return;
+		}
 		if (act.equals("Exit")) {
 			doClose();
 			return;
@@ -345,6 +379,9 @@ public class Pixie implements ActionListener {
 		Integer oy = IntegerDialog.getInteger("Height:", 0, 4096, 128, 0);
 
 		file = null;
+		project = null;
+		effectsMenu.cancelEffects();
+		cancelLoading();
 		BufferedImage img = createWhiteBufferedImage(ox, oy);
 		canvas.setImage(img);
 		scroll.updateUI();
@@ -353,15 +390,33 @@ public class Pixie implements ActionListener {
 	}
 
 	public void doClose() {
-		if (!hasChanged())
-			System.exit(0);
-		int c = JOptionPane.showConfirmDialog(frame,
-				"Do you want to save changes?");
-		if (c == JOptionPane.CANCEL_OPTION)
+		boolean saving = false;
+		if (hasChanged()) {
+			int c = JOptionPane.showConfirmDialog(frame,
+					"Do you want to save changes?");
+			if (c == JOptionPane.CANCEL_OPTION)
+				return;
+			if (c == JOptionPane.OK_OPTION)
+				saving = doSave(false);
+		}
+		exit(hasChanged() && !saving);
+	}
+
+	/**
+	 * Exits now, or once the save running is done, unless it fails.
+	 *
+	 * @param unsaved
+	 *            whether changes are left unsaved, which the recovery
+	 *            journal then keeps for the next start
+	 */
+	protected void exit(boolean unsaved) {
+		if (saver != null) {
+			exitWhenSaved = true;
+			exitUnsaved = unsaved;
 			return;
-		if (c == JOptionPane.OK_OPTION)
-			doSave(false);
-		System.exit(0);
+		}
+		frame.setVisible(false);
+		autosave.exit(unsaved);
 	}
 
 	/**
@@ -379,51 +434,160 @@ public class Pixie implements ActionListener {
 		return true;
 	}
 
+	/**
+	 * Starts opening a file in the background; the canvas shows it as it
+	 * loads.
+	 */
 	public boolean doOpen() {
 		if (!checkSave())
 			return false;
 		File f = getFile(false);
 		if (f == null)
 			return false;
+		effectsMenu.cancelEffects();
+		cancelLoading();
+		if (Project.isProject(f))
+			return openProject(f);
+		loader = new ImageLoader(this, f);
+		loader.execute();
+		return true;
+	}
+
+	/**
+	 * Opens a project with its history. Its tiles are mapped, not read, so
+	 * this takes about as long whatever the size of the image.
+	 */
+	protected boolean openProject(File f) {
+		Project p = new Project(f);
 		try {
-			BufferedImage img = ImageIO.read(f);
-			canvas.setImage(img);
-			file = f;
-			scroll.updateUI();
-			updateTitle();
-			return true;
+			canvas.setHistory(p.load());
 		} catch (IOException e) {
-			JOptionPane.showMessageDialog(frame,
-					"Cannot load file \"" + f.getPath() + "\"", "Error",
-					JOptionPane.ERROR_MESSAGE);
 			e.printStackTrace();
+			JOptionPane.showMessageDialog(null, "Cannot load file \""
+					+ f.getPath() + "\": " + e.getMessage(), "Error",
+					JOptionPane.ERROR_MESSAGE);
+			return false;
 		}
-		return false;
+		file = f;
+		project = p;
+		scroll.updateUI();
+		updateTitle();
+		return true;
 	}
 
+	/** Shows an image recovered with its history, as a new image. */
+	void restore(Canvas.History h) {
+		canvas.setHistory(h);
+		file = null;
+		project = null;
+		scroll.updateUI();
+		updateTitle();
+	}
+
+	boolean isLoading() {
+		return loader != null;
+	}
+
+	/** Called by l when it shows the first pixels of its image. */
+	void startLoading(ImageLoader l) {
+		if (l != loader)
+			return;
+		setEditable(false);
+		scroll.updateUI();
+		updateTitle();
+	}
+
+	/**
+	 * Called by l once its image is in the canvas, or failed to load.
+	 *
+	 * @param f
+	 *            the file the canvas now shows, or null
+	 */
+	void finishLoading(ImageLoader l, File f) {
+		if (l != loader)
+			return;
+		loader = null;
+		file = f;
+		project = null;
+		setEditable(true);
+		scroll.updateUI();
+		updateTitle();
+	}
+
+	protected void cancelLoading() {
+		if (loader == null)
+			return;
+		loader.cancel(false);
+		loader = null;
+		canvas.setPlaceholder(null);
+		setEditable(true);
+		updateTitle();
+	}
+
+	/** Enables or disables everything that changes the image. */
+	protected void setEditable(boolean editable) {
+		canvas.setEnabled(editable);
+		effectsMenu.setEnabled(editable);
+		bUndo.setEnabled(editable);
+		bRotate90Right.setEnabled(editable);
+		bRotate90Left.setEnabled(editable);
+		bMirror.setEnabled(editable);
+		bMirrorOx.setEnabled(editable);
+	}
+
+	/**
+	 * Starts saving the image as it is now in the background.
+	 *
+	 * @return false if no save was started
+	 */
 	public boolean doSave(boolean saveAs) {
+		if (loader != null) {
+			JOptionPane.showMessageDialog(frame,
+					"The image is still loading.");
+			return false;
+		}
+		if (saver != null) {
+			JOptionPane.showMessageDialog(frame,
+					"The image is still being saved.");
+			return false;
+		}
 		File f = file;
 		if (saveAs || file == null) {
 			f = getFile(true);
 			if (f == null)
 				return false;
-			// just use PNG..
+			// just use PNG, or a project..
 			String name = f.getName().toLowerCase();
-			if (!name.endsWith(".png")) {
+			if (!name.endsWith(".png") && !Project.isProject(f)) {
 				if (name.contains("."))
 					name = name.substring(0, name.lastIndexOf('.'));
 				f = new File(f.getParentFile(), name + ".png");
 			}
 		}
-		try {
-			ImageIO.write(canvas.getRenderImage(), "PNG", f);
-			file = f;
-			return true;
-		} catch (IOException e) {
-			e.printStackTrace();
+		file = f;
+		if (Project.isProject(f)) {
+			// the same project appends, a new one starts a new file
+			if (project == null || !project.getFile().equals(f))
+				project = new Project(f);
+			saver = new SaveTask(this, project);
+		} else {
+			project = null;
+			saver = new SaveTask(this, f, compression);
 		}
+		saver.execute();
+		updateTitle();
+		return true;
+	}
 
-		return false;
+	/** Called by s once it has written its file, or failed to. */
+	void finishSaving(SaveTask s, boolean saved) {
+		if (s != saver)
+			return;
+		saver = null;
+		updateTitle();
+		if (exitWhenSaved && saved)
+			exit(exitUnsaved);
+		exitWhenSaved = false;
 	}
 
 	public File getFile(final boolean save) {
@@ -432,7 +596,7 @@ public class Pixie implements ActionListener {
 		fc.setFileFilter(new FileFilter() {
 			@Override
 			public String getDescription() {
-				return "Image Files";
+				return "Image Files and Projects";
 			}
 
 			@Override
@@ -449,7 +613,7 @@ public class Pixie implements ActionListener {
 				for (String s : filters)
 					if (name.endsWith(s.toLowerCase()))
 						return true;
-				return false;
+				return Project.isProject(f);
 			}
 		});
 		int result;
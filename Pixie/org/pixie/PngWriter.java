@@ -0,0 +1,409 @@
+package org.pixie;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a TiledImage as a PNG, compressing strips of rows in parallel in
+ * the manner of pigz. Each strip is deflated on its own, primed with the
+ * last 32K of the data before it, and ends on a byte boundary with a sync
+ * flush, so the strips join into one deflate stream; their Adler-32 sums
+ * are combined for the zlib trailer. Opaque images are written as RGB.
+ */
+public class PngWriter {
+	static final byte[] SIGNATURE = { (byte) 137, 'P', 'N', 'G', 13, 10, 26,
+			10 };
+	/** the uncompressed bytes a strip holds at least */
+	static final int STRIP_BYTES = 1 << 20;
+	/** the deflate window, which each strip is primed with */
+	static final int WINDOW = 32 * 1024;
+	static final int BUFFER_SIZE = 1 << 20;
+
+	private final int level;
+
+	/**
+	 * @param level
+	 *            the deflate level, from Deflater.NO_COMPRESSION (0) to
+	 *            Deflater.BEST_COMPRESSION (9)
+	 */
+	public PngWriter(int level) {
+		if (level < 0 || level > 9)
+			throw new IllegalArgumentException("level " + level);
+		this.level = level;
+	}
+
+	/** A compressed strip, with what the zlib trailer needs to know. */
+	static class Strip {
+		byte[] data;
+		int length;
+		long adler, inputLength;
+	}
+
+	/**
+	 * Writes img to f, through a temporary file that replaces f once it is
+	 * complete. img must not be written to meanwhile; pass a snapshot.
+	 *
+	 * @param progress
+	 *            stepped once per strip written, or null
+	 */
+	public void write(final TiledImage img, File f, Progress progress)
+			throws IOException {
+		final int width = img.getWidth(), height = img.getHeight();
+		final int bpp = isOpaque(img) ? 3 : 4;
+		final int rowBytes = 1 + width * bpp;
+		final int rows = Math.max(1, STRIP_BYTES / rowBytes);
+		int strips = (height + rows - 1) / rows;
+		if (progress != null)
+			progress.addTotal(strips);
+
+		Path tmp = File.createTempFile(f.getName(), ".tmp",
+				f.getAbsoluteFile().getParentFile()).toPath();
+		FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		ArrayDeque<Future<Strip>> pending = new ArrayDeque<Future<Strip>>();
+		boolean done = false;
+		try {
+			Output out = new Output(ch);
+			out.write(SIGNATURE, 0, SIGNATURE.length);
+			ByteBuffer ihdr = ByteBuffer.allocate(13);
+			ihdr.putInt(width).putInt(height).put((byte) 8)
+					.put((byte) (bpp == 4 ? 6 : 2)).put((byte) 0)
+					.put((byte) 0).put((byte) 0);
+			out.chunk("IHDR", ihdr.array(), 0, 13);
+
+			// keep a few strips in flight ahead of the one being written
+			int window = 2 * Parallel.POOL.getParallelism();
+			long adler = 1;
+			int next = 0;
+			for (int i = 0; i < strips; i++) {
+				while (next < strips && pending.size() < window) {
+					final int y0 = next * rows;
+					final int y1 = Math.min(height, y0 + rows);
+					final boolean last = next == strips - 1;
+					pending.add(Parallel.POOL.submit(new Callable<Strip>() {
+						public Strip call() {
+							return compress(img, bpp, y0, y1, last);
+						}
+					}));
+					next++;
+				}
+				Strip s = get(pending.removeFirst());
+				if (progress != null)
+					progress.step();
+				adler = adler32Combine(adler, s.adler, s.inputLength);
+				if (i == 0) {
+					// the zlib header goes in front of the first strip
+					byte[] d = new byte[s.length + 2];
+					d[0] = 0x78;
+					d[1] = (byte) (level < 2 ? 0x01 : level < 6 ? 0x5e
+							: level == 6 ? 0x9c : 0xda);
+					System.arraycopy(s.data, 0, d, 2, s.length);
+					s.data = d;
+					s.length += 2;
+				}
+				if (i == strips - 1) {
+					byte[] d = new byte[s.length + 4];
+					System.arraycopy(s.data, 0, d, 0, s.length);
+					ByteBuffer.wrap(d, s.length, 4).putInt((int) adler);
+					s.data = d;
+					s.length += 4;
+				}
+				out.chunk("IDAT", s.data, 0, s.length);
+			}
+			out.chunk("IEND", new byte[0], 0, 0);
+			out.flush();
+			ch.force(false);
+			done = true;
+		} finally {
+			ch.close();
+			if (!done) {
+				for (Future<Strip> p : pending)
+					p.cancel(false);
+				Files.deleteIfExists(tmp);
+			}
+		}
+		Files.move(tmp, f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static Strip get(Future<Strip> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Filters and deflates rows y0 to y1. The rows just above are filtered
+	 * again to prime the deflater with the data the strip follows.
+	 */
+	protected Strip compress(TiledImage img, int bpp, int y0, int y1,
+			boolean last) {
+		int width = img.getWidth();
+		int rowBytes = 1 + width * bpp;
+		int primed = Math.min(y0, (WINDOW + rowBytes - 1) / rowBytes);
+		int top = Math.max(0, y0 - primed - 1);
+		int[] argb = TiledImage.argbData(img.getImage(new Rectangle(0, top,
+				width, y1 - top)));
+
+		byte[] filtered = new byte[(y1 - y0 + primed) * rowBytes];
+		byte[] prev = new byte[width * bpp], cur = new byte[width * bpp];
+		byte[][] trial = new byte[5][width * bpp];
+		int pos = 0;
+		for (int y = top; y < y1; y++) {
+			toBytes(argb, (y - top) * width, width, bpp, cur);
+			if (y >= y0 - primed) {
+				filterRow(cur, y == 0 ? null : prev, bpp, trial, filtered,
+						pos);
+				pos += rowBytes;
+			}
+			byte[] t = prev;
+			prev = cur;
+			cur = t;
+		}
+
+		int start = primed * rowBytes;
+		Strip s = new Strip();
+		s.inputLength = filtered.length - start;
+		Adler32 adler = new Adler32();
+		adler.update(filtered, start, (int) s.inputLength);
+		s.adler = adler.getValue();
+
+		Deflater d = new Deflater(level, true);
+		try {
+			if (start > 0)
+				d.setDictionary(filtered, Math.max(0, start - WINDOW),
+						Math.min(start, WINDOW));
+			d.setInput(filtered, start, (int) s.inputLength);
+			if (last)
+				d.finish();
+			byte[] out = new byte[(int) (s.inputLength / 2) + 64];
+			int n = 0;
+			while (true) {
+				if (n == out.length)
+					out = Arrays.copyOf(out, out.length * 2);
+				n += last ? d.deflate(out, n, out.length - n) : d.deflate(out,
+						n, out.length - n, Deflater.SYNC_FLUSH);
+				// a sync flush is complete once it leaves room to spare
+				if (last ? d.finished() : n < out.length)
+					break;
+			}
+			s.data = out;
+			s.length = n;
+		} finally {
+			d.end();
+		}
+		return s;
+	}
+
+	private static void toBytes(int[] argb, int off, int width, int bpp,
+			byte[] row) {
+		int j = 0;
+		for (int i = off, end = off + width; i < end; i++) {
+			int p = argb[i];
+			row[j++] = (byte) (p >> 16);
+			row[j++] = (byte) (p >> 8);
+			row[j++] = (byte) p;
+			if (bpp == 4)
+				row[j++] = (byte) (p >>> 24);
+		}
+	}
+
+	/**
+	 * Writes the filter type and filtered bytes of a row into out at pos,
+	 * choosing the filter whose output has the smallest sum of absolute
+	 * values, as libpng does.
+	 */
+	private void filterRow(byte[] cur, byte[] prev, int bpp, byte[][] trial,
+			byte[] out, int pos) {
+		int n = cur.length;
+		if (level == 0) {
+			out[pos] = 0;
+			System.arraycopy(cur, 0, out, pos + 1, n);
+			return;
+		}
+		long best = Long.MAX_VALUE;
+		int bestType = 0;
+		for (int type = 0; type < 5; type++) {
+			if (prev == null && type >= 2)
+				// Up, Average and Paeth add nothing above the first row
+				break;
+			long sum = filter(type, cur, prev, bpp, trial[type], best);
+			if (sum < best) {
+				best = sum;
+				bestType = type;
+			}
+		}
+		out[pos] = (byte) bestType;
+		System.arraycopy(trial[bestType], 0, out, pos + 1, n);
+	}
+
+	/**
+	 * Filters a row with one filter type into t.
+	 *
+	 * @return the sum of the absolute filtered values, or any value not
+	 *         under limit once it reaches that
+	 */
+	private static long filter(int type, byte[] cur, byte[] prev, int bpp,
+			byte[] t, long limit) {
+		int n = cur.length;
+		long sum = 0;
+		switch (type) {
+		case 0:
+			for (int i = 0; i < n; i++)
+				sum += Math.abs(cur[i]);
+			System.arraycopy(cur, 0, t, 0, n);
+			return sum;
+		case 1:
+			for (int i = 0; i < bpp; i++)
+				sum += Math.abs(t[i] = cur[i]);
+			for (int i = bpp; i < n && sum < limit; i++)
+				sum += Math.abs(t[i] = (byte) (cur[i] - cur[i - bpp]));
+			return sum;
+		case 2:
+			for (int i = 0; i < n && sum < limit; i++)
+				sum += Math.abs(t[i] = (byte) (cur[i] - prev[i]));
+			return sum;
+		case 3:
+			for (int i = 0; i < bpp; i++)
+				sum += Math.abs(t[i] = (byte) (cur[i] - ((prev[i] & 0xff) >> 1)));
+			for (int i = bpp; i < n && sum < limit; i++)
+				sum += Math.abs(t[i] = (byte) (cur[i] - (((cur[i - bpp] & 0xff)
+						+ (prev[i] & 0xff)) >> 1)));
+			return sum;
+		default:
+			for (int i = 0; i < bpp; i++)
+				sum += Math.abs(t[i] = (byte) (cur[i] - prev[i]));
+			for (int i = bpp; i < n && sum < limit; i++)
+				sum += Math.abs(t[i] = (byte) (cur[i] - paeth(
+						cur[i - bpp] & 0xff, prev[i] & 0xff,
+						prev[i - bpp] & 0xff)));
+			return sum;
+		}
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc)
+			return a;
+		return pb <= pc ? b : c;
+	}
+
+	/** @return whether no pixel of img is even partly transparent */
+	static boolean isOpaque(final TiledImage img) {
+		final boolean[] opaque = { true };
+		Parallel.forRange(0, img.getTilesY(), 1, new Parallel.Range() {
+			public void run(int from, int to) {
+				for (int ty = from; ty < to && opaque[0]; ty++)
+					for (int tx = 0; tx < img.getTilesX() && opaque[0]; tx++) {
+						TiledImage.Tile t = img.getTile(tx, ty);
+						if (t == null) {
+							opaque[0] = false;
+							return;
+						}
+						int[] data = t.lock(false);
+						try {
+							for (int p : data)
+								if (p >>> 24 != 255) {
+									opaque[0] = false;
+									return;
+								}
+						} finally {
+							t.unlock();
+						}
+					}
+			}
+		});
+		return opaque[0];
+	}
+
+	/**
+	 * @return the Adler-32 of two pieces of data joined, from their sums
+	 *         and the length of the second, as zlib's adler32_combine
+	 */
+	static long adler32Combine(long adler1, long adler2, long len2) {
+		final long base = 65521;
+		long rem = len2 % base;
+		long sum1 = adler1 & 0xffff;
+		long sum2 = rem * sum1 % base;
+		sum1 += (adler2 & 0xffff) + base - 1;
+		sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base
+				- rem;
+		if (sum1 >= base)
+			sum1 -= base;
+		if (sum1 >= base)
+			sum1 -= base;
+		if (sum2 >= base << 1)
+			sum2 -= base << 1;
+		if (sum2 >= base)
+			sum2 -= base;
+		return sum1 | sum2 << 16;
+	}
+
+	/** Writes chunks to a channel through one reused buffer. */
+	static class Output {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private final CRC32 crc = new CRC32();
+
+		Output(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (!buffer.hasRemaining())
+					flush();
+				int n = Math.min(len, buffer.remaining());
+				buffer.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		void writeInt(int v) throws IOException {
+			if (buffer.remaining() < 4)
+				flush();
+			buffer.putInt(v);
+		}
+
+		void chunk(String type, byte[] data, int off, int len)
+				throws IOException {
+			byte[] t = type.getBytes("US-ASCII");
+			writeInt(len);
+			write(t, 0, 4);
+			write(data, off, len);
+			crc.reset();
+			crc.update(t);
+			crc.update(data, off, len);
+			writeInt((int) crc.getValue());
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+	}
+}
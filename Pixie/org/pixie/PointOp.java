@@ -0,0 +1,144 @@
+package org.pixie;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+
+/**
+ * An operation that maps every pixel on its own, through one 256-entry
+ * lookup table per channel. The tables are built once per set of
+ * parameters; applying them is a single allocation-free pass over the
+ * pixels.
+ */
+public class PointOp {
+	/** the tables, already shifted into their channel's position */
+	private final int[] a = new int[256], r = new int[256], g = new int[256],
+			b = new int[256];
+
+	/**
+	 * Each table gives the new value of a channel for every old value; the
+	 * results are clamped to 0..255.
+	 */
+	public PointOp(int[] alpha, int[] red, int[] green, int[] blue) {
+		for (int i = 0; i < 256; i++) {
+			a[i] = clamp(alpha[i]) << 24;
+			r[i] = clamp(red[i]) << 16;
+			g[i] = clamp(green[i]) << 8;
+			b[i] = clamp(blue[i]);
+		}
+	}
+
+	private static int clamp(int v) {
+		return v < 0 ? 0 : v > 255 ? 255 : v;
+	}
+
+	private static int[] identity() {
+		int[] t = new int[256];
+		for (int i = 0; i < 256; i++)
+			t[i] = i;
+		return t;
+	}
+
+	/** Raises each color channel to 1/gamma. */
+	public static PointOp gamma(double gamma) {
+		int[] t = new int[256];
+		for (int i = 0; i < 256; i++)
+			t[i] = (int) (255 * Math.pow(i / 255.0, 1 / gamma));
+		return new PointOp(identity(), t, t, t);
+	}
+
+	/** Multiplies each color channel, like a RescaleOp without offsets. */
+	public static PointOp scale(float amount) {
+		int[] t = new int[256];
+		for (int i = 0; i < 256; i++)
+			t[i] = (int) (i * amount);
+		return new PointOp(identity(), t, t, t);
+	}
+
+	public static PointOp invert() {
+		int[] t = new int[256];
+		for (int i = 0; i < 256; i++)
+			t[i] = 255 - i;
+		return new PointOp(identity(), t, t, t);
+	}
+
+	/** Blends every pixel towards an opaque color. */
+	public static PointOp fade(Color to, float amount) {
+		int[] alpha = new int[256], red = new int[256], green = new int[256], blue = new int[256];
+		for (int i = 0; i < 256; i++) {
+			alpha[i] = Math.round(255 * amount + i * (1 - amount));
+			red[i] = Math.round(to.getRed() * amount + i * (1 - amount));
+			green[i] = Math.round(to.getGreen() * amount + i * (1 - amount));
+			blue[i] = Math.round(to.getBlue() * amount + i * (1 - amount));
+		}
+		return new PointOp(alpha, red, green, blue);
+	}
+
+	/**
+	 * @return one op giving the same pixels as this one followed by next,
+	 *         so that a run of point operations costs a single pass
+	 */
+	public PointOp then(PointOp next) {
+		int[] alpha = new int[256], red = new int[256], green = new int[256], blue = new int[256];
+		for (int i = 0; i < 256; i++) {
+			alpha[i] = next.a[a[i] >>> 24] >>> 24;
+			red[i] = next.r[r[i] >> 16] >> 16;
+			green[i] = next.g[g[i] >> 8] >> 8;
+			blue[i] = next.b[b[i]];
+		}
+		return new PointOp(alpha, red, green, blue);
+	}
+
+	public int apply(int argb) {
+		return a[argb >>> 24] | r[(argb >> 16) & 0xff] | g[(argb >> 8) & 0xff]
+				| b[argb & 0xff];
+	}
+
+	public void apply(int[] argb, int off, int len) {
+		int[] a = this.a, r = this.r, g = this.g, b = this.b;
+		for (int i = off, end = off + len; i < end; i++) {
+			int p = argb[i];
+			argb[i] = a[p >>> 24] | r[(p >> 16) & 0xff] | g[(p >> 8) & 0xff]
+					| b[p & 0xff];
+		}
+	}
+
+	/** Applies the tables in place to a TYPE_INT_ARGB image. */
+	public void apply(BufferedImage img) {
+		int[] data = TiledImage.argbData(img);
+		if (data != null) {
+			apply(data, 0, data.length);
+			return;
+		}
+		int w = img.getWidth();
+		int[] row = new int[w];
+		for (int y = 0; y < img.getHeight(); y++) {
+			img.getRGB(0, y, w, 1, row, 0, w);
+			apply(row, 0, w);
+			img.setRGB(0, y, w, 1, row, 0, w);
+		}
+	}
+
+	public void apply(TiledImage img) {
+		apply(img, null);
+	}
+
+	/**
+	 * Applies the tables in place, one tile at a time.
+	 *
+	 * @param progress
+	 *            stepped once per tile, or null
+	 */
+	public void apply(TiledImage img, Progress progress) {
+		if (progress != null)
+			progress.addTotal(img.getTilesX() * img.getTilesY());
+		for (int ty = 0; ty < img.getTilesY(); ty++)
+			for (int tx = 0; tx < img.getTilesX(); tx++) {
+				if (progress != null)
+					progress.step();
+				TiledImage.Tile t = img.getWritableTile(tx, ty);
+				int[] data = t.lock(true);
+				apply(data, 0, data.length);
+				t.unlock();
+			}
+	}
+}
@@ -0,0 +1,40 @@
+package org.pixie;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Follows a long computation running on other threads: it counts the steps
+ * done out of a total, and lets another thread ask it to stop, which the
+ * next step does by throwing a CancellationException.
+ */
+public class Progress {
+	private final AtomicInteger done = new AtomicInteger();
+	private volatile int total;
+	private volatile boolean cancelled;
+
+	/** Adds steps to the total, which is 0 while it is unknown. */
+	public void addTotal(int steps) {
+		total += steps;
+	}
+
+	public void step() {
+		if (cancelled)
+			throw new CancellationException();
+		done.incrementAndGet();
+	}
+
+	/** @return the percentage done, or -1 while the total is unknown */
+	public int getPercent() {
+		int t = total;
+		return t == 0 ? -1 : Math.min(100, done.get() * 100 / t);
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
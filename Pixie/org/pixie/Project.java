@@ -0,0 +1,666 @@
+package org.pixie;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.CRC32;
+
+import org.pixie.Canvas.History;
+import org.pixie.Canvas.Keyframe;
+import org.pixie.EffectsMenu.Blur;
+import org.pixie.EffectsMenu.Emboss;
+import org.pixie.EffectsMenu.Fade;
+import org.pixie.EffectsMenu.GamaCorrection;
+import org.pixie.EffectsMenu.Invert;
+import org.pixie.EffectsMenu.Mean_Removal;
+import org.pixie.EffectsMenu.Mirror;
+import org.pixie.EffectsMenu.MirrorOX;
+import org.pixie.EffectsMenu.Rotate90Left;
+import org.pixie.EffectsMenu.Rotate90Right;
+import org.pixie.EffectsMenu.Sharpen;
+import org.pixie.EffectsMenu.Smooth;
+import org.pixie.EffectsMenu.Value;
+import org.pixie.ImageAction.FillAction;
+import org.pixie.ImageAction.LineAction;
+import org.pixie.ImageAction.PointAction;
+import org.pixie.ImageAction.RectangleAction;
+import org.pixie.ImageAction.ReplaceColorAction;
+import org.pixie.ImageAction.SprayAction;
+import org.pixie.TiledImage.Tile;
+
+/**
+ * A .pixie project file: the image with its undo history, so that it
+ * reopens as it was left. The file is only ever appended to, as records of
+ * tiles, actions and states, each state naming the tiles and actions of a
+ * saved history by their offsets in the file. A save appends the tiles and
+ * actions not in the file yet, then the new state, then an end record
+ * pointing at it; images share most of their tiles with their keyframes
+ * and with earlier saves, so a save costs what changed since the last one.
+ * <p>
+ * Opening reads the last state and its actions, and maps the tiles, whose
+ * pixels are only read as they are drawn, so a project opens in about the
+ * same time whatever the size of its image.
+ * <p>
+ * A record is its type, the length of its payload, the payload and a CRC-32
+ * of the payload. A save interrupted halfway leaves the previous state as
+ * the last whole one, which is what opening falls back to.
+ */
+public class Project {
+	public static final String SUFFIX = ".pixie";
+	static final byte[] MAGIC = { 'P', 'I', 'X', 'I', 'E', 'P', 'R', 'J' };
+	static final int FORMAT = 1;
+	static final int HEADER_SIZE = 16;
+	static final int TILE = 1, ACTION = 2, STATE = 3, END = 4;
+	static final int END_SIZE = 8 + 8 + 4;
+	/** files are mapped in pieces this large, overlapping by a tile */
+	static final long MAP_CHUNK = 1L << 30;
+	static final int MAX_TILE_RECORD = 8 + 8 + 4 * TiledImage.TILE_SIZE
+			* TiledImage.TILE_SIZE + 4;
+
+	private final File file;
+	/** where the tiles and actions already in the file are */
+	private final Map<Tile, Long> tiles = new WeakHashMap<Tile, Long>();
+	private final Map<ImageAction, Long> actions = new WeakHashMap<ImageAction, Long>();
+	/** the length of the file up to the last whole save, 0 if none yet */
+	private long end;
+	/**
+	 * the history saved last, whose tiles a replay may have rebuilt with
+	 * the same pixels
+	 */
+	private History last;
+	/** the file as it was loaded, and its length */
+	private final ArrayList<ByteBuffer> maps = new ArrayList<ByteBuffer>();
+	private long length;
+
+	public Project(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public static boolean isProject(File f) {
+		return f.getName().toLowerCase().endsWith(SUFFIX);
+	}
+
+	/**
+	 * Reads the last state saved. The tiles it returns stay mapped from the
+	 * file, which must not be changed by anything but this Project.
+	 */
+	public History load() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			length = raf.length();
+			byte[] header = new byte[HEADER_SIZE];
+			raf.readFully(header);
+			ByteBuffer b = ByteBuffer.wrap(header);
+			for (byte m : MAGIC)
+				if (b.get() != m)
+					throw new IOException(file + " is not a Pixie project");
+			if (b.getInt() != FORMAT)
+				throw new IOException(file + " is of a newer format");
+			FileChannel ch = raf.getChannel();
+			for (long pos = 0; pos < length; pos += MAP_CHUNK)
+				maps.add(ch.map(FileChannel.MapMode.READ_ONLY, pos,
+						Math.min(length - pos, MAP_CHUNK + MAX_TILE_RECORD)));
+			long state = findState();
+			if (state < 0)
+				throw new IOException(file + " holds no complete save");
+			end = state + 12 + record(state).remaining();
+			if (end + END_SIZE <= length && type(end) == END)
+				end += END_SIZE;
+			last = readState(record(state));
+			return last;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the offset of the last whole state: the one the end record at
+	 *         the end of the file points at, or if the last save was cut
+	 *         short, the last one found by walking through the records
+	 */
+	private long findState() {
+		if (length >= HEADER_SIZE + END_SIZE) {
+			long e = length - END_SIZE;
+			if (type(e) == END) {
+				ByteBuffer r = record(e);
+				if (r != null && r.remaining() == 8) {
+					long state = r.getLong();
+					if (state >= HEADER_SIZE && state < e
+							&& type(state) == STATE && record(state) != null)
+						return state;
+				}
+			}
+		}
+		long state = -1;
+		for (long pos = HEADER_SIZE; pos + 12 <= length;) {
+			ByteBuffer h = at(pos, 8);
+			int type = h.getInt();
+			long size = h.getInt() & 0xffffffffL;
+			if (type < TILE || type > END || pos + 12 + size > length)
+				break;
+			if (type == STATE && record(pos) != null)
+				state = pos;
+			pos += 12 + size;
+		}
+		return state;
+	}
+
+	/** @return a buffer of length bytes at offset pos of the file */
+	private ByteBuffer at(long pos, int length) {
+		ByteBuffer b = maps.get((int) (pos / MAP_CHUNK)).duplicate();
+		int off = (int) (pos % MAP_CHUNK);
+		if (off + length <= b.capacity()) {
+			b.position(off);
+			b.limit(off + length);
+			return b.slice();
+		}
+		// only a large state runs past the overlap into the next piece
+		ByteBuffer copy = ByteBuffer.allocate(length);
+		while (copy.hasRemaining()) {
+			b = maps.get((int) (pos / MAP_CHUNK)).duplicate();
+			off = (int) (pos % MAP_CHUNK);
+			int n = Math.min(b.capacity() - off, copy.remaining());
+			b.position(off);
+			b.limit(off + n);
+			copy.put(b);
+			pos += n;
+		}
+		copy.flip();
+		return copy;
+	}
+
+	private int type(long pos) {
+		return at(pos, 4).getInt();
+	}
+
+	/**
+	 * @return the payload of the record at pos, or null if it fails its
+	 *         check
+	 */
+	private ByteBuffer record(long pos) {
+		int size = at(pos + 4, 4).getInt();
+		if (size < 0 || pos + 12 + size > length)
+			return null;
+		ByteBuffer payload = at(pos + 8, size);
+		byte[] data = new byte[size];
+		payload.duplicate().get(data);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return at(pos + 8 + size, 4).getInt() == (int) crc.getValue() ? payload
+				: null;
+	}
+
+	private History readState(ByteBuffer b) throws IOException {
+		TileStore store = TileStore.create();
+		if (store == null)
+			throw new IOException("Cannot create a tile store");
+		HashMap<Long, Tile> read = new HashMap<Long, Tile>();
+		List<ImageAction> acts = new ArrayList<ImageAction>();
+		for (int i = b.getInt(); i > 0; i--) {
+			long pos = b.getLong();
+			ImageAction act = readAction(pos);
+			actions.put(act, pos);
+			acts.add(act);
+		}
+		TiledImage base = readImage(b, store, read);
+		TiledImage image = readImage(b, store, read);
+		List<Keyframe> keyframes = new ArrayList<Keyframe>();
+		for (int i = b.getInt(); i > 0; i--) {
+			int index = b.getInt();
+			keyframes.add(new Keyframe(index, acts.get(index - 1), readImage(
+					b, store, read)));
+		}
+		return new History(base, image, acts, keyframes);
+	}
+
+	private TiledImage readImage(ByteBuffer b, TileStore store,
+			HashMap<Long, Tile> read) {
+		int width = b.getInt(), height = b.getInt();
+		TiledImage img = new TiledImage(width, height, store);
+		Tile[] t = new Tile[img.getTilesX() * img.getTilesY()];
+		for (int i = 0; i < t.length; i++) {
+			long pos = b.getLong();
+			if (pos == 0)
+				continue;
+			t[i] = read.get(pos);
+			if (t[i] == null) {
+				// sized from the image, so that no page of the tile is read
+				Rectangle r = img.getTileBounds(i % img.getTilesX(), i
+						/ img.getTilesX());
+				t[i] = new Tile(r.width, r.height, store, at(pos + 16,
+						4 * r.width * r.height).asIntBuffer());
+				read.put(pos, t[i]);
+				tiles.put(t[i], pos);
+			}
+		}
+		return new TiledImage(width, height, store, t);
+	}
+
+	/**
+	 * Saves h, appending what the file lacks, or writing a new file through
+	 * a temporary one if nothing was saved to it yet by this Project.
+	 *
+	 * @param progress
+	 *            stepped once per tile written, or null
+	 */
+	public void save(History h, Progress progress) throws IOException {
+		List<TiledImage> images = new ArrayList<TiledImage>();
+		images.add(h.base);
+		images.add(h.image);
+		for (Keyframe k : h.keyframes)
+			images.add(k.image);
+		int count = 0;
+		WeakHashMap<Tile, Boolean> counted = new WeakHashMap<Tile, Boolean>();
+		for (TiledImage img : images)
+			for (int ty = 0; ty < img.getTilesY(); ty++)
+				for (int tx = 0; tx < img.getTilesX(); tx++) {
+					Tile t = img.getTile(tx, ty);
+					if (t != null && !tiles.containsKey(t)
+							&& counted.put(t, Boolean.TRUE) == null)
+						count++;
+				}
+		if (progress != null)
+			progress.addTotal(count + 1);
+
+		boolean append = end > 0;
+		Path path = append ? file.toPath() : File.createTempFile(
+				file.getName(), ".tmp", file.getAbsoluteFile().getParentFile())
+				.toPath();
+		FileChannel ch = FileChannel.open(path, StandardOpenOption.WRITE);
+		// offsets of what this save writes, kept once it is whole
+		HashMap<Tile, Long> newTiles = new HashMap<Tile, Long>();
+		HashMap<ImageAction, Long> newActions = new HashMap<ImageAction, Long>();
+		boolean done = false;
+		try {
+			Writer out = new Writer(ch, append ? end : 0);
+			if (append) {
+				ch.truncate(end);
+				ch.position(end);
+			} else {
+				ch.truncate(0);
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.put(MAGIC).putInt(FORMAT);
+				out.write(header.array(), HEADER_SIZE);
+			}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream state = new DataOutputStream(bytes);
+			state.writeInt(h.acts.size());
+			for (ImageAction act : h.acts) {
+				Long pos = actions.get(act);
+				if (pos == null)
+					pos = newActions.get(act);
+				if (pos == null) {
+					ByteArrayOutputStream a = new ByteArrayOutputStream();
+					writeAction(new DataOutputStream(a), act);
+					pos = out.record(ACTION, a.toByteArray(), a.size());
+					newActions.put(act, pos);
+				}
+				state.writeLong(pos);
+			}
+			writeImage(state, h.base, last == null ? null : last.base, out,
+					newTiles, progress);
+			writeImage(state, h.image, last == null ? null : last.image, out,
+					newTiles, progress);
+			state.writeInt(h.keyframes.size());
+			for (Keyframe k : h.keyframes) {
+				state.writeInt(k.index);
+				writeImage(state, k.image, lastKeyframe(k.index), out,
+						newTiles, progress);
+			}
+			// the state goes in only once all it points at is on disk
+			out.flush();
+			ch.force(false);
+			long pos = out.record(STATE, bytes.toByteArray(), bytes.size());
+			ByteBuffer e = ByteBuffer.allocate(8).putLong(pos);
+			long saved = out.record(END, e.array(), 8) + END_SIZE;
+			out.flush();
+			ch.force(false);
+			if (progress != null)
+				progress.step();
+
+			ch.close();
+			if (!append)
+				Files.move(path, file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			done = true;
+			tiles.putAll(newTiles);
+			last = h;
+			actions.putAll(newActions);
+			end = saved;
+		} finally {
+			if (!done) {
+				if (append)
+					ch.truncate(end);
+				ch.close();
+				if (!append)
+					Files.deleteIfExists(path);
+			}
+		}
+	}
+
+	/** @return the image of the keyframe at index saved last, or null */
+	private TiledImage lastKeyframe(int index) {
+		if (last != null)
+			for (Keyframe k : last.keyframes)
+				if (k.index == index)
+					return k.image;
+		return null;
+	}
+
+	/**
+	 * Writes the tiles of img the file lacks and their offsets into state.
+	 * A tile with the pixels of the one at its place in previous, the same
+	 * image as saved last, points at that one instead: undoing replays
+	 * actions into new tiles, most of them the same as before.
+	 */
+	private void writeImage(DataOutputStream state, TiledImage img,
+			TiledImage previous, Writer out, HashMap<Tile, Long> newTiles,
+			Progress progress) throws IOException {
+		if (previous != null
+				&& (previous.getWidth() != img.getWidth() || previous
+						.getHeight() != img.getHeight()))
+			previous = null;
+		state.writeInt(img.getWidth());
+		state.writeInt(img.getHeight());
+		for (int ty = 0; ty < img.getTilesY(); ty++)
+			for (int tx = 0; tx < img.getTilesX(); tx++) {
+				Tile t = img.getTile(tx, ty);
+				Long pos = t == null ? Long.valueOf(0) : tiles.get(t);
+				if (pos == null)
+					pos = newTiles.get(t);
+				if (pos == null) {
+					if (progress != null)
+						progress.step();
+					if (previous != null)
+						pos = sameAs(t, previous.getTile(tx, ty));
+					if (pos == null)
+						pos = out.tile(t);
+					newTiles.put(t, pos);
+				}
+				state.writeLong(pos);
+			}
+	}
+
+	/** @return the offset of o, if it is in the file with the pixels of t */
+	private Long sameAs(Tile t, Tile o) {
+		Long pos = o == null ? null : tiles.get(o);
+		if (pos == null)
+			return null;
+		int[] a = t.lock(false);
+		try {
+			int[] b = o.lock(false);
+			try {
+				return Arrays.equals(a, b) ? pos : null;
+			} finally {
+				o.unlock();
+			}
+		} finally {
+			t.unlock();
+		}
+	}
+
+	static void writeAction(DataOutputStream out, ImageAction act)
+			throws IOException {
+		if (act instanceof LineAction) {
+			LineAction a = (LineAction) act;
+			out.writeUTF("line");
+			out.writeInt(a.c.getRGB());
+			writePoint(out, a.p1);
+			writePoint(out, a.p2);
+		} else if (act instanceof RectangleAction) {
+			RectangleAction a = (RectangleAction) act;
+			out.writeUTF("rectangle");
+			out.writeInt(a.out.getRGB());
+			out.writeBoolean(a.in != null);
+			if (a.in != null)
+				out.writeInt(a.in.getRGB());
+			writePoint(out, a.p1);
+			writePoint(out, a.p2);
+		} else if (act instanceof PointAction) {
+			PointAction a = (PointAction) act;
+			out.writeUTF("point");
+			out.writeInt(a.c.getRGB());
+			writePoints(out, a.pts, a.size);
+		} else if (act instanceof SprayAction) {
+			SprayAction a = (SprayAction) act;
+			out.writeUTF("spray");
+			out.writeInt(a.c.getRGB());
+			out.writeInt(a.radius);
+			out.writeInt(a.density);
+			out.writeLong(a.seed);
+			writePoints(out, a.pts, a.size);
+		} else if (act instanceof FillAction) {
+			FillAction a = (FillAction) act;
+			out.writeUTF("fill");
+			out.writeInt(a.c.getRGB());
+			writePoint(out, a.origin);
+			out.writeInt(a.tolerance);
+			a.mask.write(out);
+		} else if (act instanceof ReplaceColorAction) {
+			ReplaceColorAction a = (ReplaceColorAction) act;
+			out.writeUTF("replace");
+			out.writeInt(a.c.getRGB());
+			out.writeInt(a.target);
+			out.writeInt(a.tolerance);
+			a.mask.write(out);
+		} else if (act instanceof Blur) {
+			out.writeUTF("blur");
+			out.writeInt(((Blur) act).amount);
+		} else if (act instanceof Value) {
+			out.writeUTF("value");
+			out.writeFloat(((Value) act).amount);
+		} else if (act instanceof GamaCorrection) {
+			out.writeUTF("gamma");
+			out.writeDouble(((GamaCorrection) act).gamma);
+		} else if (act instanceof Fade) {
+			out.writeUTF("fade");
+			out.writeInt(((Fade) act).fadeTo.getRGB());
+			out.writeFloat(((Fade) act).amount);
+		} else if (act instanceof Invert)
+			out.writeUTF("invert");
+		else if (act instanceof Smooth)
+			out.writeUTF("smooth");
+		else if (act instanceof Sharpen)
+			out.writeUTF("sharpen");
+		else if (act instanceof Emboss)
+			out.writeUTF("emboss");
+		else if (act instanceof Mean_Removal)
+			out.writeUTF("mean_removal");
+		else if (act instanceof Rotate90Right)
+			out.writeUTF("rotate_right");
+		else if (act instanceof Rotate90Left)
+			out.writeUTF("rotate_left");
+		else if (act instanceof Mirror)
+			out.writeUTF("mirror");
+		else if (act instanceof MirrorOX)
+			out.writeUTF("mirror_ox");
+		else
+			throw new IOException("Cannot save "
+					+ act.getClass().getSimpleName() + " in a project");
+	}
+
+	private ImageAction readAction(long pos) throws IOException {
+		ByteBuffer r = record(pos);
+		if (r == null || type(pos) != ACTION)
+			throw new IOException("Damaged action in " + file);
+		byte[] data = new byte[r.remaining()];
+		r.get(data);
+		return readAction(new DataInputStream(new ByteArrayInputStream(data)));
+	}
+
+	static ImageAction readAction(DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		if (name.equals("line")) {
+			Color c = readColor(in);
+			LineAction a = new LineAction(readPoint(in), c);
+			a.p2 = readPoint(in);
+			return a;
+		}
+		if (name.equals("rectangle")) {
+			Color out = readColor(in);
+			Color inside = in.readBoolean() ? readColor(in) : null;
+			RectangleAction a = new RectangleAction(readPoint(in), out, inside);
+			a.p2 = readPoint(in);
+			return a;
+		}
+		if (name.equals("point")) {
+			PointAction a = new PointAction(readColor(in));
+			for (int i = in.readInt() / 2; i > 0; i--)
+				a.add(in.readInt(), in.readInt());
+			return a;
+		}
+		if (name.equals("spray")) {
+			Color c = readColor(in);
+			int radius = in.readInt(), density = in.readInt();
+			// the same seed sprays the same dots along the same points
+			SprayAction a = new SprayAction(c, radius, density, in.readLong());
+			for (int i = in.readInt() / 2; i > 0; i--)
+				a.add(in.readInt(), in.readInt());
+			return a;
+		}
+		if (name.equals("fill")) {
+			Color c = readColor(in);
+			Point origin = readPoint(in);
+			int tolerance = in.readInt();
+			return new FillAction(origin, c, tolerance, Mask.read(in));
+		}
+		if (name.equals("replace")) {
+			Color c = readColor(in);
+			int target = in.readInt(), tolerance = in.readInt();
+			return new ReplaceColorAction(target, c, tolerance, Mask.read(in));
+		}
+		if (name.equals("blur"))
+			return new Blur(in.readInt());
+		if (name.equals("value"))
+			return new Value(in.readFloat());
+		if (name.equals("gamma"))
+			return new GamaCorrection(in.readDouble());
+		if (name.equals("fade")) {
+			Color c = readColor(in);
+			return new Fade(c, in.readFloat());
+		}
+		// the effects without settings go by their Batch names
+		try {
+			return Batch.parse(name).get(0);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unknown action " + name);
+		}
+	}
+
+	private static void writePoint(DataOutputStream out, Point p)
+			throws IOException {
+		out.writeInt(p.x);
+		out.writeInt(p.y);
+	}
+
+	private static Point readPoint(DataInputStream in) throws IOException {
+		int x = in.readInt();
+		return new Point(x, in.readInt());
+	}
+
+	private static Color readColor(DataInputStream in) throws IOException {
+		return new Color(in.readInt(), true);
+	}
+
+	private static void writePoints(DataOutputStream out, int[] pts, int size)
+			throws IOException {
+		out.writeInt(size);
+		for (int i = 0; i < size; i++)
+			out.writeInt(pts[i]);
+	}
+
+	/** Writes records to a channel through one reused buffer. */
+	static class Writer {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer
+				.allocateDirect(PngWriter.BUFFER_SIZE);
+		private final CRC32 crc = new CRC32();
+		private byte[] pixels;
+		/** the offset in the file of the next byte written */
+		private long position;
+
+		Writer(FileChannel channel, long position) {
+			this.channel = channel;
+			this.position = position;
+		}
+
+		/** @return the offset of the record */
+		long record(int type, byte[] payload, int length) throws IOException {
+			long pos = position;
+			crc.reset();
+			crc.update(payload, 0, length);
+			writeInt(type);
+			writeInt(length);
+			write(payload, length);
+			writeInt((int) crc.getValue());
+			return pos;
+		}
+
+		/** @return the offset of a record holding the size and pixels of t */
+		long tile(Tile t) throws IOException {
+			int n = 8 + 4 * t.width * t.height;
+			if (pixels == null || pixels.length < n)
+				pixels = new byte[n];
+			ByteBuffer b = ByteBuffer.wrap(pixels);
+			b.putInt(t.width).putInt(t.height);
+			int[] data = t.lock(false);
+			try {
+				b.asIntBuffer().put(data);
+			} finally {
+				t.unlock();
+			}
+			return record(TILE, pixels, n);
+		}
+
+		void writeInt(int v) throws IOException {
+			if (buffer.remaining() < 4)
+				flush();
+			buffer.putInt(v);
+			position += 4;
+		}
+
+		void write(byte[] b, int len) throws IOException {
+			int off = 0;
+			position += len;
+			while (len > 0) {
+				if (!buffer.hasRemaining())
+					flush();
+				int n = Math.min(len, buffer.remaining());
+				buffer.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package org.pixie;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+/**
+ * Saves a snapshot of the canvas as a PNG, or of its whole history to a
+ * project, in the background, with a progress bar in the tool bar. Editing
+ * goes on meanwhile: the snapshot shares tiles with the canvas, which
+ * copies those it writes to.
+ */
+public class SaveTask extends SwingWorker<Object, Object> implements
+		ActionListener {
+	private final Pixie pixie;
+	private final File file;
+	private final TiledImage image;
+	private final int level;
+	private final Project project;
+	private final Canvas.History history;
+	/** held open until done, in case the canvas moves on to another image */
+	private final TileStore store;
+	private final Progress progress = new Progress();
+	private final JPanel panel = new JPanel();
+	private final JProgressBar bar = new JProgressBar(0, 100);
+	private final Timer timer = new Timer(100, this);
+
+	/** Saves the image as a PNG of the given deflate level. */
+	public SaveTask(Pixie pixie, File file, int level) {
+		this(pixie, file, level, null);
+	}
+
+	/** Saves the image and its history to a project. */
+	public SaveTask(Pixie pixie, Project project) {
+		this(pixie, project.getFile(), 0, project);
+	}
+
+	private SaveTask(Pixie pixie, File file, int level, Project project) {
+		this.pixie = pixie;
+		this.file = file;
+		this.level = level;
+		this.project = project;
+		if (project != null) {
+			history = pixie.canvas.getHistory();
+			image = null;
+		} else {
+			history = null;
+			image = pixie.canvas.getTiledImage().snapshot();
+		}
+		store = (project != null ? history.image : image).getStore();
+		if (store != null)
+			store.retain();
+
+		JButton cancel = new JButton("Cancel");
+		cancel.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				progress.cancel();
+			}
+		});
+		bar.setStringPainted(true);
+		panel.add(new JLabel("Saving " + file.getName()));
+		panel.add(bar);
+		panel.add(cancel);
+		pixie.getToolBar().add(panel);
+		pixie.getToolBar().revalidate();
+		timer.start();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	protected Object doInBackground() throws Exception {
+		if (project != null)
+			project.save(history, progress);
+		else
+			new PngWriter(level).write(image, file, progress);
+		return null;
+	}
+
+	/** Updates the progress bar. */
+	public void actionPerformed(ActionEvent e) {
+		int percent = progress.getPercent();
+		bar.setIndeterminate(percent < 0);
+		if (percent >= 0)
+			bar.setValue(percent);
+	}
+
+	@Override
+	protected void done() {
+		timer.stop();
+		if (store != null)
+			store.dispose();
+		pixie.getToolBar().remove(panel);
+		pixie.getToolBar().revalidate();
+		pixie.getToolBar().repaint();
+		boolean saved = false;
+		try {
+			get();
+			saved = true;
+		} catch (InterruptedException e) {
+		} catch (ExecutionException e) {
+			if (!(e.getCause() instanceof CancellationException)) {
+				e.getCause().printStackTrace();
+				JOptionPane.showMessageDialog(null, "Cannot save file \""
+						+ file.getPath() + "\": " + e.getCause().getMessage(),
+						"Error", JOptionPane.ERROR_MESSAGE);
+			}
+		}
+		pixie.finishSaving(this, saved);
+	}
+}
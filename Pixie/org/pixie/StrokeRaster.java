@@ -0,0 +1,110 @@
+package org.pixie;
+
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+
+/**
+ * The pixels a stroke covers, in one color. They are kept in small pieces
+ * that are allocated the first time the stroke reaches them and are never
+ * grown or copied, so adding to the stroke costs the same however long it
+ * already is.
+ */
+public class StrokeRaster {
+	static final int PIECE_SHIFT = 6;
+	static final int PIECE_SIZE = 1 << PIECE_SHIFT;
+
+	private final int argb;
+	private final HashMap<Integer, BufferedImage> pieces = new HashMap<Integer, BufferedImage>();
+	/** the piece plotted to last, as most pixels land next to the previous */
+	private int lastKey = Integer.MIN_VALUE;
+	private int[] lastData;
+	private int minX = Integer.MAX_VALUE, minY = minX, maxX = Integer.MIN_VALUE,
+			maxY = maxX;
+
+	public StrokeRaster(int argb) {
+		this.argb = argb;
+	}
+
+	private static int key(int px, int py) {
+		return (py << 16) | (px & 0xffff);
+	}
+
+	public void plot(int x, int y) {
+		int px = x >> PIECE_SHIFT, py = y >> PIECE_SHIFT;
+		int key = key(px, py);
+		if (key != lastKey) {
+			BufferedImage piece = pieces.get(key);
+			if (piece == null) {
+				piece = new BufferedImage(PIECE_SIZE, PIECE_SIZE,
+						BufferedImage.TYPE_INT_ARGB);
+				pieces.put(key, piece);
+			}
+			lastKey = key;
+			lastData = TiledImage.argbData(piece);
+		}
+		lastData[((y & (PIECE_SIZE - 1)) << PIECE_SHIFT) + (x & (PIECE_SIZE - 1))] = argb;
+		if (x < minX)
+			minX = x;
+		if (x > maxX)
+			maxX = x;
+		if (y < minY)
+			minY = y;
+		if (y > maxY)
+			maxY = y;
+	}
+
+	/**
+	 * Plots the pixels of the line from (x1, y1) to (x2, y2), both included,
+	 * stepping like Graphics.drawLine so strokes look as they used to.
+	 */
+	public void line(int x1, int y1, int x2, int y2) {
+		int dx = Math.abs(x2 - x1), dy = Math.abs(y2 - y1);
+		int sx = x1 < x2 ? 1 : -1, sy = y1 < y2 ? 1 : -1;
+		boolean xMajor = dx >= dy;
+		int major = xMajor ? dx : dy, minor = xMajor ? dy : dx;
+		int err = -major;
+		for (int i = 0; i <= major; i++) {
+			plot(x1, y1);
+			err += 2 * minor;
+			if (err >= 0) {
+				if (xMajor)
+					y1 += sy;
+				else
+					x1 += sx;
+				err -= 2 * major;
+			}
+			if (xMajor)
+				x1 += sx;
+			else
+				y1 += sy;
+		}
+	}
+
+	/** @return the bounds of the plotted pixels */
+	public Rectangle getBounds() {
+		if (minX > maxX)
+			return new Rectangle();
+		return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+	}
+
+	/** Draws the pieces inside the clip of g. */
+	public void paint(Graphics g) {
+		Rectangle r = getBounds();
+		Rectangle clip = g.getClipBounds();
+		if (clip != null)
+			r = r.intersection(clip);
+		if (r.isEmpty())
+			return;
+		int px2 = (r.x + r.width - 1) >> PIECE_SHIFT;
+		int py2 = (r.y + r.height - 1) >> PIECE_SHIFT;
+		for (int py = r.y >> PIECE_SHIFT; py <= py2; py++)
+			for (int px = r.x >> PIECE_SHIFT; px <= px2; px++) {
+				BufferedImage piece = pieces.get(key(px, py));
+				if (piece != null)
+					g.drawImage(piece, px << PIECE_SHIFT, py << PIECE_SHIFT,
+							null);
+			}
+	}
+}
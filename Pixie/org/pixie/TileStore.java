@@ -0,0 +1,197 @@
+package org.pixie;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.pixie.TiledImage.Tile;
+
+/**
+ * Keeps the pixels of tiles in a memory-mapped scratch file. Only the most
+ * recently used tiles have their pixels on the heap; the others are written
+ * back to the file and left to the OS to page in and out, so the heap used
+ * by an image stays bounded whatever its size. Tiles mapped from a
+ * project file are read from it on first use, and dropped again when
+ * evicted, as the file still holds them.
+ */
+public class TileStore {
+	/** "true" or "false" forces the mapped store on or off */
+	static final String PROPERTY = "pixie.mappedTiles";
+	static final int SLOT_INTS = TiledImage.TILE_SIZE * TiledImage.TILE_SIZE;
+	static final int CHUNK_SLOTS = 64;
+	static final int MIN_RESIDENT = 64;
+
+	private final File file;
+	private final FileChannel channel;
+	private final ArrayList<IntBuffer> chunks = new ArrayList<IntBuffer>();
+	private final int capacity;
+	/** resident tiles, least recently used first */
+	private final LinkedHashMap<Tile, Boolean> resident = new LinkedHashMap<Tile, Boolean>(
+			16, 0.75f, true);
+
+	// slots of tiles that were garbage collected are reused
+	private int slots;
+	private final ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+	private final ReferenceQueue<Tile> released = new ReferenceQueue<Tile>();
+	private final HashMap<Reference<Tile>, Integer> slotRefs = new HashMap<Reference<Tile>, Integer>();
+	/** the image owning the store, and tasks reading a snapshot of it */
+	private int holders = 1;
+
+	/**
+	 * @param capacity
+	 *            how many tiles may have their pixels on the heap at once
+	 */
+	public TileStore(int capacity) throws IOException {
+		this.capacity = Math.max(capacity, MIN_RESIDENT);
+		file = File.createTempFile("pixie", ".tiles");
+		file.deleteOnExit();
+		channel = new RandomAccessFile(file, "rw").getChannel();
+	}
+
+	/**
+	 * @return a store for an image of the given size, or null if it fits
+	 *         comfortably on the heap
+	 */
+	public static TileStore forImage(int width, int height) {
+		long max = Runtime.getRuntime().maxMemory();
+		String p = System.getProperty(PROPERTY);
+		if (p == null ? (long) width * height * 4 <= max / 4 : !Boolean
+				.parseBoolean(p))
+			return null;
+		return create();
+	}
+
+	/**
+	 * @return a store keeping up to a quarter of the heap resident, or null
+	 *         if its scratch file cannot be made
+	 */
+	public static TileStore create() {
+		try {
+			return new TileStore((int) (Runtime.getRuntime().maxMemory() / 4
+					/ (SLOT_INTS * 4)));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	synchronized void add(Tile t) {
+		t.dirty = true;
+		resident.put(t, Boolean.TRUE);
+		evict();
+	}
+
+	synchronized int[] lock(Tile t, boolean write) {
+		if (t.data == null) {
+			t.data = new int[t.width * t.height];
+			if (t.slot < 0) {
+				// a tile mapped from a file, read for the first time
+				IntBuffer b = t.source.duplicate();
+				b.rewind();
+				b.get(t.data);
+			} else {
+				IntBuffer b = slot(t.slot);
+				for (int y = 0; y < t.height; y++) {
+					b.position(y * TiledImage.TILE_SIZE);
+					b.get(t.data, y * t.width, t.width);
+				}
+			}
+			resident.put(t, Boolean.TRUE);
+		} else
+			resident.get(t);
+		if (write)
+			t.dirty = true;
+		t.pins++;
+		return t.data;
+	}
+
+	synchronized void unlock(Tile t) {
+		t.pins--;
+		evict();
+	}
+
+	private void evict() {
+		Iterator<Tile> it = resident.keySet().iterator();
+		while (resident.size() > capacity && it.hasNext()) {
+			Tile t = it.next();
+			if (t.pins > 0)
+				continue;
+			if (t.dirty) {
+				if (t.slot < 0)
+					t.slot = allocate(t);
+				IntBuffer b = slot(t.slot);
+				for (int y = 0; y < t.height; y++) {
+					b.position(y * TiledImage.TILE_SIZE);
+					b.put(t.data, y * t.width, t.width);
+				}
+				t.dirty = false;
+			}
+			t.data = null;
+			t.image = null;
+			it.remove();
+		}
+	}
+
+	private int allocate(Tile t) {
+		Reference<? extends Tile> r;
+		while ((r = released.poll()) != null)
+			freeSlots.add(slotRefs.remove(r));
+		int slot = freeSlots.isEmpty() ? slots++ : freeSlots.remove();
+		slotRefs.put(new PhantomReference<Tile>(t, released), slot);
+		return slot;
+	}
+
+	private IntBuffer slot(int slot) {
+		int chunk = slot / CHUNK_SLOTS;
+		try {
+			while (chunks.size() <= chunk) {
+				long size = (long) CHUNK_SLOTS * SLOT_INTS * 4;
+				MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE,
+						chunks.size() * size, size);
+				chunks.add(b.order(ByteOrder.nativeOrder()).asIntBuffer());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot map tile store " + file, e);
+		}
+		IntBuffer b = chunks.get(chunk).duplicate();
+		b.position((slot % CHUNK_SLOTS) * SLOT_INTS);
+		return b.slice();
+	}
+
+	/**
+	 * Holds the store open for a task still reading its tiles in the
+	 * background; the task calls dispose once done.
+	 */
+	public synchronized void retain() {
+		holders++;
+	}
+
+	/**
+	 * Gives up a hold on the store. Once the last holder is done, closes and
+	 * deletes the scratch file; its tiles must not be used again.
+	 */
+	public synchronized void dispose() {
+		if (--holders > 0)
+			return;
+		resident.clear();
+		chunks.clear();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,859 @@
+package org.pixie;
+
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * An ARGB image stored as a grid of tiles. Snapshots share their tiles with
+ * the original and a tile is only copied when one of them writes to it, so
+ * copying the image or painting a small action costs in proportion to the
+ * tiles touched, not to the size of the image.
+ * <p>
+ * Tiles live on the heap, or in a {@link TileStore} that pages them out to a
+ * mapped file. Their pixels must be accessed between {@link Tile#lock} and
+ * {@link Tile#unlock}.
+ */
+public class TiledImage {
+	public static final int TILE_SHIFT = 8;
+	public static final int TILE_SIZE = 1 << TILE_SHIFT;
+
+	private static final int[] ARGB_MASKS = { 0xff0000, 0xff00, 0xff,
+			0xff000000 };
+
+	protected static class Tile {
+		final int width, height;
+		final TileStore store;
+		// managed by the store
+		int[] data;
+		int slot = -1, pins;
+		boolean dirty;
+		/** the pixels in a file the tile was read from, read on first lock */
+		IntBuffer source;
+		BufferedImage image;
+
+		Tile(int width, int height, TileStore store) {
+			this.width = width;
+			this.height = height;
+			this.store = store;
+			data = new int[width * height];
+			if (store != null)
+				store.add(this);
+		}
+
+		/**
+		 * A tile whose pixels stay in source, a buffer mapped from a file,
+		 * until they are first locked. The store must not be null.
+		 */
+		Tile(int width, int height, TileStore store, IntBuffer source) {
+			this.width = width;
+			this.height = height;
+			this.store = store;
+			this.source = source;
+		}
+
+		Tile(Tile t) {
+			width = t.width;
+			height = t.height;
+			store = t.store;
+			data = t.lock(false).clone();
+			t.unlock();
+			if (store != null)
+				store.add(this);
+		}
+
+		/** @return the pixels, kept in memory until unlock() */
+		int[] lock(boolean write) {
+			if (store == null)
+				return data;
+			return store.lock(this, write);
+		}
+
+		void unlock() {
+			if (store != null)
+				store.unlock(this);
+		}
+
+		/**
+		 * @return a BufferedImage drawing straight into this tile's pixels,
+		 *         usable while the tile is locked
+		 */
+		BufferedImage getImage() {
+			if (image == null)
+				image = wrap(data, width, height);
+			return image;
+		}
+	}
+
+	private static final AtomicLong versions = new AtomicLong();
+
+	private final int width, height, tilesX, tilesY;
+	private final TileStore store;
+	private final Tile[] tiles;
+	/** whether tiles[i] belongs to this image alone and may be written */
+	private final boolean[] owned;
+	/** the same for images with the same pixels; see getVersion() */
+	private volatile long version = nextVersion();
+
+	public TiledImage(int width, int height) {
+		this(width, height, null);
+	}
+
+	public TiledImage(int width, int height, TileStore store) {
+		this.width = width;
+		this.height = height;
+		this.store = store;
+		tilesX = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+		tilesY = (height + TILE_SIZE - 1) >> TILE_SHIFT;
+		tiles = new Tile[tilesX * tilesY];
+		owned = new boolean[tiles.length];
+	}
+
+	/** An image made of existing tiles, shared with whatever holds them. */
+	TiledImage(int width, int height, TileStore store, Tile[] tiles) {
+		this(width, height, store);
+		System.arraycopy(tiles, 0, this.tiles, 0, this.tiles.length);
+	}
+
+	protected TiledImage(TiledImage src) {
+		width = src.width;
+		height = src.height;
+		tilesX = src.tilesX;
+		tilesY = src.tilesY;
+		store = src.store;
+		tiles = src.tiles.clone();
+		owned = new boolean[tiles.length];
+		version = src.version;
+	}
+
+	public static TiledImage fromImage(BufferedImage img) {
+		TiledImage t = new TiledImage(img.getWidth(), img.getHeight(),
+				TileStore.forImage(img.getWidth(), img.getHeight()));
+		t.setPixels(img, 0, 0);
+		return t;
+	}
+
+	public static TiledImage read(File f) throws IOException {
+		return read(f, null);
+	}
+
+	/** Told as read() fills in an image, from the top down. */
+	public interface ReadListener {
+		/**
+		 * Called once the rows of img above y are final, first with y = 0
+		 * as soon as the size is known. Throwing stops the read.
+		 */
+		void rowsRead(TiledImage img, int y);
+	}
+
+	/**
+	 * Reads an image. One backed by a TileStore never needs to fit on the
+	 * heap: it is decoded in one pass into a band of tile rows, which is
+	 * copied into the store each time the decoder moves below it; one whose
+	 * rows come out of order, as in an interlaced PNG, is read a band of
+	 * tiles at a time instead. Others are decoded in one pass, and with a
+	 * listener their rows are copied in a band at a time as the decoder
+	 * delivers them.
+	 *
+	 * @param listener
+	 *            told about the rows read, or null
+	 */
+	public static TiledImage read(File f, ReadListener listener)
+			throws IOException {
+		ImageReader reader = openReader(f);
+		try {
+			int w = reader.getWidth(0), h = reader.getHeight(0);
+			TileStore store = TileStore.forImage(w, h);
+			if (store == null && listener == null)
+				return fromImage(reader.read(0));
+
+			TiledImage t = new TiledImage(w, h, store);
+			if (listener != null)
+				listener.rowsRead(t, 0);
+			if (store == null && STREAMED.contains(reader.getFormatName()
+					.toLowerCase(Locale.ROOT)))
+				return stream(reader, t, listener);
+			if (store == null) {
+				t.setPixels(reader.read(0), 0, 0);
+				listener.rowsRead(t, h);
+				return t;
+			}
+			if (BANDED.contains(reader.getFormatName().toLowerCase(
+					Locale.ROOT))
+					&& !interlaced(reader) && streamBands(reader, t, listener))
+				return t;
+			ImageReadParam param = reader.getDefaultReadParam();
+			for (int y = 0; y < h; y += TILE_SIZE) {
+				Rectangle band = new Rectangle(0, y, w, Math.min(TILE_SIZE, h
+						- y));
+				param.setSourceRegion(band);
+				t.setPixels(reader.read(0, param), 0, y);
+				if (listener != null)
+					listener.rowsRead(t, y + band.height);
+			}
+			return t;
+		} finally {
+			closeReader(reader);
+		}
+	}
+
+	/**
+	 * formats whose readers report the rows they decode where they put them;
+	 * the BMP reader, for one, reports bottom-up rows as if top-down
+	 */
+	static final Set<String> STREAMED = new HashSet<String>(Arrays.asList(
+			"png", "jpeg", "jpg", "tif", "tiff"));
+
+	/**
+	 * Decodes the image in one pass, copying each band of tile rows into t
+	 * once the decoder has delivered its final pixels.
+	 */
+	private static TiledImage stream(ImageReader reader, final TiledImage t,
+			final ReadListener listener) throws IOException {
+		final int[] copied = new int[1];
+		reader.addIIOReadUpdateListener(new IIOReadUpdateListener() {
+			/**
+			 * whether the pass decodes whole rows; the rows of interlaced
+			 * images are only final at the end
+			 */
+			boolean wholeRows = true;
+			/**
+			 * false once the image turns out to take several passes, each
+			 * refining rows earlier ones delivered
+			 */
+			boolean streaming = true;
+			/** the rows from the top delivered so far, whole and in order */
+			int done;
+
+			public void passStarted(ImageReader source, BufferedImage theImage,
+					int pass, int minPass, int maxPass, int minX, int minY,
+					int periodX, int periodY, int[] bands) {
+				if (streaming && (pass > minPass || maxPass > minPass)) {
+					// progressive JPEG scans: copy all rows again at the end
+					streaming = false;
+					copied[0] = 0;
+				}
+				wholeRows = streaming && periodX == 1 && periodY == 1;
+			}
+
+			public void imageUpdate(ImageReader source, BufferedImage theImage,
+					int minX, int minY, int width, int height, int periodX,
+					int periodY, int[] bands) {
+				// bottom-up or tiled images are only copied at the end
+				if (!wholeRows || minX != 0 || width != t.width || minY > done)
+					return;
+				done = Math.max(done, minY + height);
+				int rows = done & ~(TILE_SIZE - 1);
+				if (rows > copied[0])
+					copyRows(theImage, t, copied, rows, listener);
+			}
+
+			public void passComplete(ImageReader source, BufferedImage theImage) {
+			}
+
+			public void thumbnailPassStarted(ImageReader source,
+					BufferedImage theThumbnail, int pass, int minPass,
+					int maxPass, int minX, int minY, int periodX, int periodY,
+					int[] bands) {
+			}
+
+			public void thumbnailUpdate(ImageReader source,
+					BufferedImage theThumbnail, int minX, int minY, int width,
+					int height, int periodX, int periodY, int[] bands) {
+			}
+
+			public void thumbnailPassComplete(ImageReader source,
+					BufferedImage theThumbnail) {
+			}
+		});
+		BufferedImage img = reader.read(0);
+		copyRows(img, t, copied, t.height, listener);
+		return t;
+	}
+
+	/**
+	 * formats whose readers write their rows from the top down through the
+	 * generic Raster methods, into any kind of DataBuffer
+	 */
+	static final Set<String> BANDED = new HashSet<String>(Arrays.asList(
+			"png", "jpeg", "jpg"));
+
+	/** @return whether the rows of a PNG are stored out of order */
+	private static boolean interlaced(ImageReader reader) throws IOException {
+		Element ihdr = nativeNode(reader, "javax_imageio_png_1.0", "IHDR");
+		return ihdr != null && !"none".equals(ihdr.getAttribute("interlaceMethod"));
+	}
+
+	/** @return whether a JPEG is decoded in scans, each over all rows */
+	private static boolean progressive(ImageReader reader) throws IOException {
+		Element sof = nativeNode(reader, "javax_imageio_jpeg_image_1.0", "sof");
+		return sof != null && "2".equals(sof.getAttribute("process"));
+	}
+
+	/**
+	 * @return the first node called name in the metadata of the image, if
+	 *         its native format is the one given, or null
+	 */
+	private static Element nativeNode(ImageReader reader, String format,
+			String name) throws IOException {
+		IIOMetadata m = reader.getImageMetadata(0);
+		if (m == null || !format.equals(m.getNativeMetadataFormatName()))
+			return null;
+		NodeList nodes = ((Element) m.getAsTree(format))
+				.getElementsByTagName(name);
+		return nodes.getLength() == 0 ? null : (Element) nodes.item(0);
+	}
+
+	/**
+	 * Decodes the image in one pass into t, through a destination whose
+	 * samples only exist for one band of tile rows at a time. The scans of a
+	 * progressive JPEG each go over all rows, so the listener is only told
+	 * once the last is done.
+	 *
+	 * @return false if the decoder went back to rows already copied, which
+	 *         leaves t to be read again
+	 */
+	private static boolean streamBands(ImageReader reader, TiledImage t,
+			ReadListener listener) throws IOException {
+		ImageTypeSpecifier type = reader.getImageTypes(0).next();
+		if ((long) BandBuffer.stride(type, t.width) * t.height > Integer.MAX_VALUE)
+			return false;
+		boolean scans = progressive(reader);
+		ColorModel cm = type.getColorModel();
+		BandBuffer band = new BandBuffer(reader, t, type, scans ? null
+				: listener, scans);
+		BufferedImage dst = new BufferedImage(cm, Raster.createWritableRaster(
+				type.getSampleModel(t.width, t.height), band, null),
+				cm.isAlphaPremultiplied(), null);
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setDestination(dst);
+		reader.read(0, param);
+		if (band.broken)
+			return false;
+		band.copy(t.height);
+		if (scans && listener != null)
+			listener.rowsRead(t, t.height);
+		return true;
+	}
+
+	/**
+	 * The samples of an image, of which only one band of tile rows is kept.
+	 * Writing below it copies it into the TiledImage and moves it down;
+	 * writing above it starts the next scan, or aborts the read.
+	 */
+	private static class BandBuffer extends DataBuffer {
+		final ImageReader reader;
+		final TiledImage t;
+		final ReadListener listener;
+		final ColorModel cm;
+		/** the layout of one band */
+		final SampleModel sm;
+		/** the elements in a row of each bank */
+		final int stride;
+		DataBuffer band;
+		/** the first row of the band, and its first element */
+		int top, base;
+		/** whether each scan writes all rows again */
+		final boolean scans;
+		boolean broken;
+
+		BandBuffer(ImageReader reader, TiledImage t, ImageTypeSpecifier type,
+				ReadListener listener, boolean scans) {
+			super(type.getSampleModel().getDataType(), stride(type, t.width)
+					* t.height, type.getSampleModel().createDataBuffer()
+					.getNumBanks());
+			this.reader = reader;
+			this.t = t;
+			this.listener = listener;
+			cm = type.getColorModel();
+			sm = type.getSampleModel(t.width, TILE_SIZE);
+			stride = stride(type, t.width);
+			band = sm.createDataBuffer();
+			this.scans = scans;
+		}
+
+		static int stride(ImageTypeSpecifier type, int w) {
+			return type.getSampleModel(w, 2).createDataBuffer().getSize()
+					- type.getSampleModel(w, 1).createDataBuffer().getSize();
+		}
+
+		public int getElem(int bank, int i) {
+			int j = i - base;
+			if (j >= 0 && j < band.getSize())
+				return band.getElem(bank, j);
+			if (j < 0 && !scans)
+				abort();
+			return 0;
+		}
+
+		public void setElem(int bank, int i, int val) {
+			int j = i - base;
+			if (j < 0 || j >= band.getSize()) {
+				if (j < 0 && !scans) {
+					abort();
+					return;
+				}
+				copy(top + TILE_SIZE);
+				top = i / stride & ~(TILE_SIZE - 1);
+				base = top * stride;
+				band = sm.createDataBuffer();
+				j = i - base;
+			}
+			band.setElem(bank, j, val);
+		}
+
+		private void abort() {
+			if (!broken) {
+				broken = true;
+				reader.abort();
+			}
+		}
+
+		/** Copies the rows of the band above y into the image. */
+		void copy(int y) {
+			int rows = Math.min(y, t.height) - top;
+			if (rows <= 0)
+				return;
+			BufferedImage img = new BufferedImage(cm,
+					Raster.createWritableRaster(sm, band, null),
+					cm.isAlphaPremultiplied(), null);
+			t.setPixels(img.getSubimage(0, 0, t.width, rows), 0, top);
+			if (listener != null)
+				listener.rowsRead(t, top + rows);
+		}
+	}
+
+	private static void copyRows(BufferedImage img, TiledImage t,
+			int[] copied, int rows, ReadListener listener) {
+		rows = Math.min(rows, t.height);
+		if (rows <= copied[0])
+			return;
+		t.setPixels(img.getSubimage(0, copied[0], t.width, rows - copied[0]),
+				0, copied[0]);
+		copied[0] = rows;
+		if (listener != null)
+			listener.rowsRead(t, rows);
+	}
+
+	/** @return a reader set to f; pass it to closeReader when done */
+	static ImageReader openReader(File f) throws IOException {
+		ImageInputStream in = ImageIO.createImageInputStream(f);
+		if (in == null)
+			throw new IOException("Cannot open " + f);
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+		if (!readers.hasNext()) {
+			in.close();
+			throw new IOException("Unknown image format " + f);
+		}
+		ImageReader reader = readers.next();
+		reader.setInput(in);
+		return reader;
+	}
+
+	static void closeReader(ImageReader reader) throws IOException {
+		Object in = reader.getInput();
+		reader.dispose();
+		if (in instanceof ImageInputStream)
+			((ImageInputStream) in).close();
+	}
+
+	/** Wraps an int array as a TYPE_INT_ARGB image without copying it. */
+	public static BufferedImage wrap(int[] data, int width, int height) {
+		DataBufferInt db = new DataBufferInt(data, data.length);
+		WritableRaster r = Raster.createPackedRaster(db, width, height,
+				width, ARGB_MASKS, null);
+		return new BufferedImage(ColorModel.getRGBdefault(), r, false, null);
+	}
+
+	/** @return the store holding the tiles, or null */
+	public TileStore getStore() {
+		return store;
+	}
+
+	/**
+	 * @return a copy of this image; both share all their tiles until one of
+	 *         them is written to
+	 */
+	public TiledImage snapshot() {
+		for (int i = 0; i < owned.length; i++)
+			owned[i] = false;
+		return new TiledImage(this);
+	}
+
+	/** @return a version no other image content has had before */
+	public static long nextVersion() {
+		return versions.incrementAndGet();
+	}
+
+	/**
+	 * @return the version of the pixels; snapshots keep the version of their
+	 *         image, and any write gives the image a new one
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Labels the current pixels, so that rebuilding the same content again
+	 * can give it the same version.
+	 */
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getTilesX() {
+		return tilesX;
+	}
+
+	public int getTilesY() {
+		return tilesY;
+	}
+
+	public Rectangle getTileBounds(int tx, int ty) {
+		int x = tx << TILE_SHIFT, y = ty << TILE_SHIFT;
+		return new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(
+				TILE_SIZE, height - y));
+	}
+
+	/** @return the tile, or null if it is fully transparent */
+	protected Tile getTile(int tx, int ty) {
+		return tiles[ty * tilesX + tx];
+	}
+
+	/** @return the tile at (tx, ty), copied first if it is shared */
+	protected Tile getWritableTile(int tx, int ty) {
+		int i = ty * tilesX + tx;
+		version = nextVersion();
+		if (!owned[i]) {
+			if (tiles[i] == null) {
+				Rectangle r = getTileBounds(tx, ty);
+				tiles[i] = new Tile(r.width, r.height, store);
+			} else
+				tiles[i] = new Tile(tiles[i]);
+			owned[i] = true;
+		}
+		return tiles[i];
+	}
+
+	public int getRGB(int x, int y) {
+		Tile t = getTile(x >> TILE_SHIFT, y >> TILE_SHIFT);
+		if (t == null)
+			return 0;
+		int rgb = t.lock(false)[(y & (TILE_SIZE - 1)) * t.width
+				+ (x & (TILE_SIZE - 1))];
+		t.unlock();
+		return rgb;
+	}
+
+	/** Paints an action onto the tiles intersecting r. */
+	public void paint(ImageAction act, Rectangle r) {
+		r = r.intersection(new Rectangle(0, 0, width, height));
+		if (r.isEmpty())
+			return;
+		int tx2 = (r.x + r.width - 1) >> TILE_SHIFT;
+		int ty2 = (r.y + r.height - 1) >> TILE_SHIFT;
+		for (int ty = r.y >> TILE_SHIFT; ty <= ty2; ty++)
+			for (int tx = r.x >> TILE_SHIFT; tx <= tx2; tx++) {
+				Rectangle c = r.intersection(getTileBounds(tx, ty));
+				Tile t = getWritableTile(tx, ty);
+				t.lock(true);
+				try {
+					Graphics2D g = t.getImage().createGraphics();
+					g.translate(-(tx << TILE_SHIFT), -(ty << TILE_SHIFT));
+					g.clipRect(c.x, c.y, c.width, c.height);
+					act.paint(g);
+					g.dispose();
+				} finally {
+					t.unlock();
+				}
+			}
+	}
+
+	/**
+	 * Sets the pixels of a mask to argb, filling the tiles it touches in
+	 * parallel.
+	 */
+	public void fill(final Mask mask, final int argb) {
+		Rectangle r = mask.getBounds().intersection(
+				new Rectangle(0, 0, width, height));
+		if (r.isEmpty())
+			return;
+		final int tx1 = r.x >> TILE_SHIFT, ty1 = r.y >> TILE_SHIFT;
+		final int cols = ((r.x + r.width - 1) >> TILE_SHIFT) - tx1 + 1;
+		int rows = ((r.y + r.height - 1) >> TILE_SHIFT) - ty1 + 1;
+		Parallel.forRange(0, cols * rows, Parallel.grain(cols * rows),
+				new Parallel.Range() {
+					public void run(int from, int to) {
+						for (int i = from; i < to; i++) {
+							int tx = tx1 + i % cols, ty = ty1 + i / cols;
+							Rectangle b = getTileBounds(tx, ty);
+							if (!mask.intersects(b))
+								continue;
+							Tile t = getWritableTile(tx, ty);
+							int[] data = t.lock(true);
+							mask.fill(data, t.width, t.height, b.x, b.y, argb);
+							t.unlock();
+						}
+					}
+				});
+	}
+
+	/** Copies the pixels of img into this image, at (x, y). */
+	public void setPixels(BufferedImage img, int x, int y) {
+		Rectangle r = new Rectangle(x, y, img.getWidth(), img.getHeight())
+				.intersection(new Rectangle(0, 0, width, height));
+		if (r.isEmpty())
+			return;
+		int[] src = argbData(img);
+		int tx2 = (r.x + r.width - 1) >> TILE_SHIFT;
+		int ty2 = (r.y + r.height - 1) >> TILE_SHIFT;
+		for (int ty = r.y >> TILE_SHIFT; ty <= ty2; ty++)
+			for (int tx = r.x >> TILE_SHIFT; tx <= tx2; tx++) {
+				Rectangle c = r.intersection(getTileBounds(tx, ty));
+				Tile t = getWritableTile(tx, ty);
+				int[] data = t.lock(true);
+				int off = (c.y & (TILE_SIZE - 1)) * t.width
+						+ (c.x & (TILE_SIZE - 1));
+				if (src != null) {
+					int sw = img.getWidth();
+					int so = (c.y - y) * sw + c.x - x;
+					for (int row = 0; row < c.height; row++)
+						System.arraycopy(src, so + row * sw, data, off + row
+								* t.width, c.width);
+				} else
+					img.getRGB(c.x - x, c.y - y, c.width, c.height, data,
+							off, t.width);
+				t.unlock();
+			}
+	}
+
+	/** @return a new TYPE_INT_ARGB image holding the pixels inside r */
+	public BufferedImage getImage(Rectangle r) {
+		BufferedImage img = new BufferedImage(r.width, r.height,
+				BufferedImage.TYPE_INT_ARGB);
+		int[] dst = argbData(img);
+		int dw = r.width, x = r.x, y = r.y;
+		r = r.intersection(new Rectangle(0, 0, width, height));
+		if (r.isEmpty())
+			return img;
+		int tx2 = (r.x + r.width - 1) >> TILE_SHIFT;
+		int ty2 = (r.y + r.height - 1) >> TILE_SHIFT;
+		for (int ty = r.y >> TILE_SHIFT; ty <= ty2; ty++)
+			for (int tx = r.x >> TILE_SHIFT; tx <= tx2; tx++) {
+				Tile t = getTile(tx, ty);
+				if (t == null)
+					continue;
+				Rectangle c = r.intersection(getTileBounds(tx, ty));
+				int off = (c.y & (TILE_SIZE - 1)) * t.width
+						+ (c.x & (TILE_SIZE - 1));
+				int doff = (c.y - y) * dw + c.x - x;
+				int[] data = t.lock(false);
+				for (int row = 0; row < c.height; row++)
+					System.arraycopy(data, off + row * t.width, dst, doff
+							+ row * dw, c.width);
+				t.unlock();
+			}
+		return img;
+	}
+
+	public BufferedImage toBufferedImage() {
+		return getImage(new Rectangle(0, 0, width, height));
+	}
+
+	/**
+	 * @return a new image of the pixels inside r, copied a tile at a time;
+	 *         one too large for the heap gets a TileStore of its own
+	 */
+	public TiledImage crop(Rectangle r) {
+		TiledImage t = new TiledImage(r.width, r.height, TileStore.forImage(
+				r.width, r.height));
+		for (int ty = 0; ty < t.tilesY; ty++)
+			for (int tx = 0; tx < t.tilesX; tx++) {
+				Rectangle c = t.getTileBounds(tx, ty);
+				t.setPixels(getImage(new Rectangle(r.x + c.x, r.y + c.y,
+						c.width, c.height)), c.x, c.y);
+			}
+		return t;
+	}
+
+	/**
+	 * @return a view of this image for ImageIO, which copies out only the
+	 *         regions it asks for
+	 */
+	public RenderedImage asRenderedImage() {
+		return new RenderedView();
+	}
+
+	protected class RenderedView implements RenderedImage {
+		private final ColorModel cm = ColorModel.getRGBdefault();
+		private final SampleModel sm = cm.createCompatibleSampleModel(
+				TILE_SIZE, TILE_SIZE);
+
+		public Vector<RenderedImage> getSources() {
+			return null;
+		}
+
+		public Object getProperty(String name) {
+			return Image.UndefinedProperty;
+		}
+
+		public String[] getPropertyNames() {
+			return null;
+		}
+
+		public ColorModel getColorModel() {
+			return cm;
+		}
+
+		public SampleModel getSampleModel() {
+			return sm;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public int getMinX() {
+			return 0;
+		}
+
+		public int getMinY() {
+			return 0;
+		}
+
+		public int getNumXTiles() {
+			return tilesX;
+		}
+
+		public int getNumYTiles() {
+			return tilesY;
+		}
+
+		public int getMinTileX() {
+			return 0;
+		}
+
+		public int getMinTileY() {
+			return 0;
+		}
+
+		public int getTileWidth() {
+			return TILE_SIZE;
+		}
+
+		public int getTileHeight() {
+			return TILE_SIZE;
+		}
+
+		public int getTileGridXOffset() {
+			return 0;
+		}
+
+		public int getTileGridYOffset() {
+			return 0;
+		}
+
+		public Raster getTile(int tx, int ty) {
+			return getData(getTileBounds(tx, ty));
+		}
+
+		public Raster getData() {
+			return getData(new Rectangle(0, 0, width, height));
+		}
+
+		public Raster getData(Rectangle rect) {
+			return getImage(rect).getRaster().createWritableTranslatedChild(
+					rect.x, rect.y);
+		}
+
+		public WritableRaster copyData(WritableRaster raster) {
+			if (raster == null)
+				return (WritableRaster) getData();
+			Rectangle r = raster.getBounds();
+			for (int y = r.y; y < r.y + r.height; y += TILE_SIZE) {
+				Rectangle band = new Rectangle(r.x, y, r.width, Math.min(
+						TILE_SIZE, r.y + r.height - y));
+				raster.setRect(getData(band));
+			}
+			return raster;
+		}
+	}
+
+	/** Draws the pixels inside r, scaled by zoom. */
+	public void draw(Graphics g, Rectangle r, int zoom) {
+		r = r.intersection(new Rectangle(0, 0, width, height));
+		if (r.isEmpty())
+			return;
+		int tx2 = (r.x + r.width - 1) >> TILE_SHIFT;
+		int ty2 = (r.y + r.height - 1) >> TILE_SHIFT;
+		for (int ty = r.y >> TILE_SHIFT; ty <= ty2; ty++)
+			for (int tx = r.x >> TILE_SHIFT; tx <= tx2; tx++) {
+				Tile t = getTile(tx, ty);
+				if (t == null)
+					continue;
+				Rectangle c = r.intersection(getTileBounds(tx, ty));
+				int sx = c.x & (TILE_SIZE - 1), sy = c.y & (TILE_SIZE - 1);
+				t.lock(false);
+				g.drawImage(t.getImage(), c.x * zoom, c.y * zoom,
+						(c.x + c.width) * zoom, (c.y + c.height) * zoom, sx, sy,
+						sx + c.width, sy + c.height, null);
+				t.unlock();
+			}
+	}
+
+	/** @return the backing array of a TYPE_INT_ARGB image, or null */
+	static int[] argbData(BufferedImage img) {
+		if (img.getType() != BufferedImage.TYPE_INT_ARGB
+				|| !(img.getRaster().getDataBuffer() instanceof DataBufferInt))
+			return null;
+		WritableRaster r = img.getRaster();
+		if (r.getParent() != null
+				|| r.getWidth() != ((SinglePixelPackedSampleModel) r
+						.getSampleModel()).getScanlineStride())
+			return null;
+		return ((DataBufferInt) r.getDataBuffer()).getData();
+	}
+}
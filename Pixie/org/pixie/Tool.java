@@ -5,15 +5,17 @@ import java.awt.Dimension;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.event.MouseEvent;
-import java.awt.image.BufferedImage;
+import java.util.Random;
 
 import javax.swing.JOptionPane;
 
 import org.pixie.ImageAction.CropAction;
 import org.pixie.ImageAction.FillAction;
 import org.pixie.ImageAction.LineAction;
+import org.pixie.ImageAction.MaskAction;
 import org.pixie.ImageAction.PointAction;
 import org.pixie.ImageAction.RectangleAction;
+import org.pixie.ImageAction.ReplaceColorAction;
 import org.pixie.ImageAction.SprayAction;
 
 public interface Tool {
@@ -25,6 +27,9 @@ public interface Tool {
 
 	void finish(Canvas c, Palette p);
 
+	/** Asks the user for the settings of the tool, if it has any. */
+	void configure();
+
 	public static abstract class GenericTool<K extends ImageAction> implements
 			Tool {
 		protected K active;
@@ -32,9 +37,9 @@ public interface Tool {
 		public void finish(Canvas c, Palette p) {
 			if (active == null)
 				return;
-			c.acts.add(active);
+			ImageAction act = active;
 			c.active = active = null;
-			c.redrawCache();
+			c.commit(act);
 		}
 
 		public static boolean isValid(MouseEvent e, Canvas c, Palette pal) {
@@ -53,6 +58,9 @@ public interface Tool {
 			c.active = active = null;
 			c.repaint();
 		}
+
+		public void configure() {
+		}
 	}
 
 	public static class LineTool extends GenericTool<LineAction> {
@@ -118,11 +126,11 @@ public interface Tool {
 		public void mouseMove(MouseEvent e, Canvas c, Palette p, boolean drag) {
 			if (active != null && isValid(e, c, null)) {
 				Point pt = e.getPoint();
-				if (!active.pts.isEmpty() && active.pts.getLast().equals(pt))
+				if (pt.equals(active.getLast()))
 					return;
 				Rectangle r = new Rectangle(pt);
-				if (!active.pts.isEmpty())
-					r.add(active.pts.getLast());
+				if (!active.isEmpty())
+					r.add(active.getLast());
 				active.add(pt);
 				c.repaint(r);
 			}
@@ -130,6 +138,21 @@ public interface Tool {
 	}
 
 	public static class SprayTool extends GenericTool<SprayAction> {
+		public int radius = 10, density = 20;
+
+		@Override
+		public void configure() {
+			Integer integer = IntegerDialog.getInteger("Spray radius (1-50)",
+					1, 50, radius, 10);
+			if (integer == null)
+				return;
+			radius = integer;
+			integer = IntegerDialog.getInteger("Dots per dab (1-200)", 1, 200,
+					density, 50);
+			if (integer != null)
+				density = integer;
+		}
+
 		public void mousePress(MouseEvent e, Canvas c, Palette p) {
 			if (active != null) {
 				cancel(c);
@@ -138,7 +161,7 @@ public interface Tool {
 			if (!isValid(e, c, p))
 				return;
 			c.active = active = new SprayAction(p.getSelectedColor(e
-					.getButton()));
+					.getButton()), radius, density, new Random().nextLong());
 			active.add(e.getPoint());
 			c.repaint();
 		}
@@ -150,12 +173,13 @@ public interface Tool {
 		public void mouseMove(MouseEvent e, Canvas c, Palette p, boolean drag) {
 			if (active != null && isValid(e, c, null)) {
 				Point pt = e.getPoint();
-				if (!active.pts.isEmpty() && active.pts.getLast().equals(pt))
+				if (pt.equals(active.getLast()))
 					return;
 				Rectangle r = new Rectangle(pt);
-				if (!active.pts.isEmpty())
-					r.add(active.pts.getLast());
+				if (!active.isEmpty())
+					r.add(active.getLast());
 				active.add(pt);
+				r.grow(radius, radius);
 				c.repaint(r);
 			}
 		}
@@ -208,7 +232,18 @@ public interface Tool {
 		}
 	}
 
-	public static class FillTool extends GenericTool<FillAction> {
+	public static class FillTool extends GenericTool<MaskAction> {
+		/** how far each channel may be from the clicked color */
+		public int tolerance;
+
+		@Override
+		public void configure() {
+			Integer integer = IntegerDialog.getInteger(
+					"Fill tolerance (0-255)", 0, 255, tolerance, 32);
+			if (integer != null)
+				tolerance = integer;
+		}
+
 		public void mousePress(MouseEvent e, Canvas c, Palette p) {
 			if (active != null) {
 				cancel(c);
@@ -216,11 +251,15 @@ public interface Tool {
 			}
 			if (!isValid(e, c, p))
 				return;
-			c.active = active = new FillAction(c.getRenderImage(),
-					e.getPoint(), p.getSelectedColor(e.getButton()), 0);
+			c.active = active = createAction(c, e.getPoint(),
+					p.getSelectedColor(e.getButton()));
 			c.repaint();
 		}
 
+		protected MaskAction createAction(Canvas c, Point p, Color color) {
+			return new FillAction(c.getTiledImage(), p, color, tolerance);
+		}
+
 		public void mouseRelease(MouseEvent e, Canvas c, Palette p) {
 			finish(c, p);
 		}
@@ -230,6 +269,16 @@ public interface Tool {
 		}
 	}
 	
+	/** Recolors every pixel of the clicked color, not just its region. */
+	public static class ReplaceColorTool extends FillTool {
+		@Override
+		protected MaskAction createAction(Canvas c, Point p, Color color) {
+			TiledImage img = c.getTiledImage();
+			return new ReplaceColorAction(img, img.getRGB(p.x, p.y), color,
+					tolerance);
+		}
+	}
+
 	public static class CropTool extends GenericTool<CropAction>
 	{
 			long mouseTime;
@@ -261,7 +310,7 @@ public interface Tool {
 		  dragging = true;
 		  x = e.getPoint().x;
 		  y = e.getPoint().y;
-				canvas.active = active = new CropAction(e.getPoint(),c1, c2, canvas.getRenderImage(), canvas, dragging);
+				canvas.active = active = new CropAction(e.getPoint(),c1, c2, canvas, dragging);
 				canvas.repaint();
 		
 		}
@@ -280,8 +329,11 @@ public interface Tool {
 			}
 			if (c == JOptionPane.OK_OPTION){
 				cancel(canvas);
-				BufferedImage imag = canvas.getRenderImage();
-				canvas.setImage(imag.getSubimage(x,y,e.getPoint().x - x,e.getPoint().y - y));
+				TiledImage imag = canvas.getTiledImage();
+				Rectangle r = new Rectangle(x,y,e.getPoint().x - x,e.getPoint().y - y)
+						.intersection(new Rectangle(0,0,imag.getWidth(),imag.getHeight()));
+				if (!r.isEmpty())
+					canvas.setImage(imag.crop(r));
 			}
 		    return;
 		}
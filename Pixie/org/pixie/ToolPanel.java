@@ -17,6 +17,7 @@ import org.pixie.Tool.CropTool;
 import org.pixie.Tool.LineTool;
 import org.pixie.Tool.PointTool;
 import org.pixie.Tool.RectangleTool;
+import org.pixie.Tool.ReplaceColorTool;
 import org.pixie.Tool.SprayTool;
 
 public class ToolPanel extends JPanel implements ActionListener {
@@ -24,6 +25,7 @@ public class ToolPanel extends JPanel implements ActionListener {
 	protected ToolDelegate del;
 	protected JPanel toolGrid;
 	protected ButtonGroup bg = new ButtonGroup();
+	protected Tool current;
 
 	public ToolPanel(ToolDelegate del) {
 		super();
@@ -40,10 +42,16 @@ public class ToolPanel extends JPanel implements ActionListener {
 		addButton(new ToolButton(Pixie.getIcon("rect"),
 				"Rect - draws a filled rectangle", new RectangleTool()));
 		addButton(new ToolButton(Pixie.getIcon("color-fill"),
-				"Fill - flood-fills a region", new FillTool()));
+				"Fill - flood-fills a region (click again to set the tolerance)",
+				new FillTool()));
+		addButton(new ToolButton(Pixie.getIcon("colorize"),
+				"Replace color - recolors every pixel of the clicked color "
+						+ "(click again to set the tolerance)",
+				new ReplaceColorTool()));
 		addButton(new ToolButton(Pixie.getIcon("cut"),"Crop image",
 				new CropTool()));
-		addButton(new ToolButton(Pixie.getIcon("spray"), "Spray",
+		addButton(new ToolButton(Pixie.getIcon("spray"),
+				"Spray (click again to set the radius and density)",
 				new SprayTool()));
 		
 		sel.doClick();
@@ -74,7 +82,12 @@ public class ToolPanel extends JPanel implements ActionListener {
 	}
 
 	public void actionPerformed(ActionEvent e) {
-		del.setTool(((ToolButton) e.getSource()).tool);
+		Tool t = ((ToolButton) e.getSource()).tool;
+		// clicking the selected tool again opens its settings
+		if (t == current)
+			t.configure();
+		else
+			del.setTool(current = t);
 		return;
 	}
 }
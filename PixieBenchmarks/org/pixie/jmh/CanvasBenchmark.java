@@ -0,0 +1,59 @@
+package org.pixie.jmh;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pixie.Canvas;
+import org.pixie.Pixie;
+
+/**
+ * Rebuilds the canvas image from a history of pencil strokes, as undo
+ * does, and copies it out as getRenderImage does, for several history
+ * lengths and image sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class CanvasBenchmark {
+	@Param({ "10", "100", "1000" })
+	int history;
+
+	@Param({ "512", "2048" })
+	int size;
+
+	Canvas canvas;
+
+	@Setup
+	public void setup() {
+		canvas = new Canvas(Pixie.createWhiteBufferedImage(size, size));
+		Random r = new Random(42);
+		for (int i = 0; i < history; i++)
+			canvas.commit(Images.stroke(r, size, 50));
+	}
+
+	@Benchmark
+	public Canvas redrawCache() {
+		canvas.redrawCache();
+		return canvas;
+	}
+
+	@Benchmark
+	public BufferedImage getRenderImage() {
+		return canvas.getRenderImage();
+	}
+}
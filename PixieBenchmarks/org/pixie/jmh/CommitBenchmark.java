@@ -0,0 +1,62 @@
+package org.pixie.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pixie.Canvas;
+import org.pixie.ImageAction.PointAction;
+import org.pixie.Pixie;
+
+/**
+ * Commits a batch of pencil strokes onto histories of several lengths,
+ * each measurement starting from a fresh canvas; the time per batch should
+ * not rise with the history.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = CommitBenchmark.BATCH)
+@Measurement(iterations = 10, batchSize = CommitBenchmark.BATCH)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class CommitBenchmark {
+	static final int BATCH = 100;
+
+	@Param({ "10", "100", "1000" })
+	int history;
+
+	@Param({ "1024" })
+	int size;
+
+	Canvas canvas;
+	PointAction[] strokes = new PointAction[BATCH];
+	int next;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		canvas = new Canvas(Pixie.createWhiteBufferedImage(size, size));
+		Random r = new Random(42);
+		for (int i = 0; i < history; i++)
+			canvas.commit(Images.stroke(r, size, 200));
+		for (int i = 0; i < BATCH; i++)
+			strokes[i] = Images.stroke(r, size, 200);
+		next = 0;
+	}
+
+	@Benchmark
+	public Canvas commit() {
+		canvas.commit(strokes[next++]);
+		return canvas;
+	}
+}
@@ -0,0 +1,100 @@
+package org.pixie.jmh;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pixie.Convolver;
+import org.pixie.TiledImage;
+
+/**
+ * Convolves a noise image with ConvolveOp and with the parallel Convolver,
+ * on the whole image and on its tiles. Setup first checks that the
+ * Convolver gives the pixels of ConvolveOp for the box blurs of every size
+ * the Blur dialog offers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ConvolutionBenchmark {
+	@Param({ "emboss", "box3", "box9" })
+	String kernel;
+
+	@Param({ "512", "2048" })
+	int size;
+
+	BufferedImage image;
+	TiledImage tiled;
+	ConvolveOp op;
+	Convolver convolver;
+
+	@Setup
+	public void setup() {
+		check();
+		Kernel k = kernel.equals("emboss") ? new Kernel(3, 3, new float[] {
+				-2, 0, 0, 0, 1, 0, 0, 0, 2 }) : box(Integer.parseInt(kernel
+				.substring(3)));
+		image = Images.noise(size, 1);
+		tiled = TiledImage.fromImage(image);
+		op = new ConvolveOp(k, ConvolveOp.EDGE_NO_OP, null);
+		convolver = new Convolver(k, ConvolveOp.EDGE_NO_OP);
+	}
+
+	/** Fails unless Convolver and ConvolveOp agree on every pixel. */
+	static void check() {
+		BufferedImage img = Images.noise(300, 2);
+		for (int n = 1; n <= 9; n++) {
+			Kernel k = box(n);
+			BufferedImage expected = new ConvolveOp(k, ConvolveOp.EDGE_NO_OP,
+					null).filter(img, null);
+			Convolver conv = new Convolver(k, ConvolveOp.EDGE_NO_OP);
+			BufferedImage flat = conv.filter(img);
+			BufferedImage tiles = conv.filter(TiledImage.fromImage(img))
+					.toBufferedImage();
+			for (int y = 0; y < img.getHeight(); y++)
+				for (int x = 0; x < img.getWidth(); x++)
+					if (flat.getRGB(x, y) != expected.getRGB(x, y)
+							|| tiles.getRGB(x, y) != expected.getRGB(x, y))
+						throw new IllegalStateException("box " + n
+								+ " differs from ConvolveOp at " + x + ","
+								+ y);
+		}
+	}
+
+	static Kernel box(int n) {
+		float[] data = new float[n * n];
+		for (int i = 0; i < data.length; i++)
+			data[i] = 1.0f / data.length;
+		return new Kernel(n, n, data);
+	}
+
+	@Benchmark
+	public BufferedImage convolveOp() {
+		return op.filter(image, null);
+	}
+
+	@Benchmark
+	public BufferedImage convolver() {
+		return convolver.filter(image);
+	}
+
+	@Benchmark
+	public TiledImage convolverTiled() {
+		return convolver.filter(tiled);
+	}
+}
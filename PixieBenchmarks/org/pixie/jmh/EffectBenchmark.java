@@ -0,0 +1,52 @@
+package org.pixie.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pixie.Batch;
+import org.pixie.TiledImage;
+
+/**
+ * Applies each effect of the Effects menu and the toolbar to a noise
+ * image. A new effect is made for every call, so no kept result is reused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class EffectBenchmark {
+	/** effect names as Batch chains spell them */
+	@Param({ "blur:3", "blur:9", "smooth", "sharpen", "emboss",
+			"mean_removal", "value:1.2", "invert", "gamma:2", "fade:0.5",
+			"rotate_right", "rotate_left", "mirror", "mirror_ox" })
+	String effect;
+
+	@Param({ "256", "1024", "2048" })
+	int size;
+
+	TiledImage image;
+
+	@Setup
+	public void setup() {
+		image = TiledImage.fromImage(Images.noise(size, 1));
+		// fail here rather than in every iteration on a bad name
+		Batch.parse(effect);
+	}
+
+	@Benchmark
+	public TiledImage apply() {
+		return Batch.parse(effect).get(0).filter(image);
+	}
+}
@@ -0,0 +1,65 @@
+package org.pixie.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pixie.FloodFill;
+import org.pixie.Mask;
+import org.pixie.TiledImage;
+
+/**
+ * Flood fills from the middle of an image where seven pixels in ten are
+ * white and the rest dark, so the filled region is one large ragged blob
+ * with many holes, the hard case for a scanline fill. The fill runs over an
+ * int array and over the tiles of the same image, as the Fill tool does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class FloodFillBenchmark {
+	@Param({ "512", "2048" })
+	int size;
+
+	@Param({ "0", "64" })
+	int tolerance;
+
+	int[] pixels;
+	TiledImage image;
+
+	@Setup
+	public void setup() {
+		pixels = new int[size * size];
+		Random r = new Random(1);
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = r.nextInt(10) < 3 ? 0xff000000 | r.nextInt(0x404040)
+					: 0xffffffff;
+		// start on white whatever the noise put there
+		pixels[size / 2 * size + size / 2] = 0xffffffff;
+		image = TiledImage.fromImage(TiledImage.wrap(pixels, size, size));
+	}
+
+	@Benchmark
+	public Mask fill() {
+		return new FloodFill(pixels, size, size, size / 2, size / 2,
+				tolerance).getMask();
+	}
+
+	@Benchmark
+	public Mask fillTiled() {
+		return new FloodFill(image, size / 2, size / 2, tolerance).getMask();
+	}
+}
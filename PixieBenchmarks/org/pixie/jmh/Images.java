@@ -0,0 +1,33 @@
+package org.pixie.jmh;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.pixie.ImageAction.PointAction;
+
+/** Reproducible inputs shared by the benchmarks. */
+class Images {
+	/** @return an opaque image of random colors */
+	static BufferedImage noise(int size, long seed) {
+		BufferedImage img = new BufferedImage(size, size,
+				BufferedImage.TYPE_INT_ARGB);
+		Random r = new Random(seed);
+		for (int y = 0; y < size; y++)
+			for (int x = 0; x < size; x++)
+				img.setRGB(x, y, 0xff000000 | r.nextInt());
+		return img;
+	}
+
+	/** @return a pencil stroke of the given number of points */
+	static PointAction stroke(Random r, int size, int points) {
+		PointAction act = new PointAction(new Color(r.nextInt()));
+		int x = r.nextInt(size), y = r.nextInt(size);
+		for (int i = 0; i < points; i++) {
+			x = Math.max(0, Math.min(size - 1, x + r.nextInt(21) - 10));
+			y = Math.max(0, Math.min(size - 1, y + r.nextInt(21) - 10));
+			act.add(x, y);
+		}
+		return act;
+	}
+}
@@ -0,0 +1,23 @@
+package org.pixie.jmh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks like JMH's own main, but writes the results as JSON
+ * to jmh-result.json unless -rf or -rff is given, so runs can be compared
+ * over time:
+ *
+ * <pre>
+ * java -jar PixieBenchmarks/target/benchmarks.jar [jmh options] [benchmark regexps]
+ * </pre>
+ */
+public class Main {
+	public static void main(String[] args) throws Exception {
+		List<String> all = new ArrayList<String>(Arrays.asList(args));
+		if (!all.contains("-rf") && !all.contains("-rff"))
+			all.addAll(0, Arrays.asList("-rf", "json", "-rff", "jmh-result.json"));
+		org.openjdk.jmh.Main.main(all.toArray(new String[all.size()]));
+	}
+}